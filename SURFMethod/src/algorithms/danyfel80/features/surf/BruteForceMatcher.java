@@ -0,0 +1,279 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Exhaustive k nearest neighbours search between the descriptors of two feature
+ * sets. Only features with the same sign of the Laplacian are compared: both
+ * sets are first split by sign and the descriptors of each part are packed in
+ * contiguous matrices. The distances between a block of queries and a block
+ * of targets are then computed while both blocks are in cache. Blocks of
+ * queries are processed concurrently on the pool.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class BruteForceMatcher {
+
+	/**
+	 * Amount of queries processed by a single task.
+	 */
+	private static final int QUERY_BLOCK = 64;
+	/**
+	 * Amount of targets compared with a block of queries at the same time.
+	 */
+	private static final int TARGET_BLOCK = 256;
+	/**
+	 * Initial distance of the nearest neighbours, larger than any distance
+	 * between normalized descriptors.
+	 */
+	public static final float MAX_DISTANCE = 3;
+
+	private static final int D = FeatureSet.DESCRIPTOR_LENGTH;
+
+	private ForkJoinPool pool;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param pool
+	 *          The pool to use, or null to search on the calling thread.
+	 */
+	public BruteForceMatcher(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Finds, for each query, the k nearest targets with the same sign of the
+	 * Laplacian, using the squared euclidean distance. Ties are resolved in
+	 * favour of the target with the lowest index.
+	 * 
+	 * @param queries
+	 *          The features to match.
+	 * @param targets
+	 *          The features to search in.
+	 * @param result
+	 *          The result receiving the neighbours of each query.
+	 */
+	public void findNeighbours(FeatureSet queries, FeatureSet targets, MatchResult result) {
+		findNeighbours(queries, targets, result, null);
+	}
+
+	/**
+	 * Finds, for each query, the k nearest targets with the same sign of the
+	 * Laplacian, and for each target, its nearest query with the same sign. Both
+	 * directions are found from the same distances. Ties are resolved in favour
+	 * of the lowest index.
+	 * 
+	 * @param queries
+	 *          The features to match.
+	 * @param targets
+	 *          The features to search in.
+	 * @param result
+	 *          The result receiving the neighbours of each query.
+	 * @param reverseNearest
+	 *          Index of the nearest query of each target, -1 if there is none, or
+	 *          null if it is not needed.
+	 */
+	public void findNeighbours(FeatureSet queries, FeatureSet targets, MatchResult result, int[] reverseNearest) {
+		result.clearNeighbours();
+		if (reverseNearest != null) {
+			Arrays.fill(reverseNearest, 0, targets.size(), -1);
+		}
+
+		for (boolean sign : new boolean[] { false, true }) {
+			int[] queryIndices = getIndices(queries, sign);
+			int[] targetIndices = getIndices(targets, sign);
+			if (queryIndices.length == 0 || targetIndices.length == 0) {
+				continue;
+			}
+			float[] queryMatrix = pack(queries, queryIndices);
+			float[] targetMatrix = pack(targets, targetIndices);
+			int blocks = (queryIndices.length + QUERY_BLOCK - 1) / QUERY_BLOCK;
+
+			if (reverseNearest == null) {
+				SURFMethodUtils.parallelFor(pool, 0, blocks, 1, (start, end) -> {
+					for (int block = start; block < end; block++) {
+						int q0 = block * QUERY_BLOCK;
+						int q1 = Math.min(queryIndices.length, q0 + QUERY_BLOCK);
+						searchBlock(queryMatrix, q0, q1, targetMatrix, targetIndices, queryIndices, result, null, null);
+					}
+				});
+			} else {
+				// Each task keeps the nearest query of every target among its blocks,
+				// so tasks are made larger to bound the memory used.
+				float[] reverseDistances = new float[targetIndices.length];
+				int[] reversePositions = new int[targetIndices.length];
+				Arrays.fill(reverseDistances, MAX_DISTANCE);
+				Arrays.fill(reversePositions, -1);
+				int parallelism = (pool != null) ? pool.getParallelism() : 1;
+				int grain = Math.max(1, blocks / (4 * parallelism));
+
+				SURFMethodUtils.parallelFor(pool, 0, blocks, grain, (start, end) -> {
+					float[] taskDistances = new float[targetIndices.length];
+					int[] taskPositions = new int[targetIndices.length];
+					Arrays.fill(taskDistances, MAX_DISTANCE);
+					Arrays.fill(taskPositions, -1);
+					for (int block = start; block < end; block++) {
+						int q0 = block * QUERY_BLOCK;
+						int q1 = Math.min(queryIndices.length, q0 + QUERY_BLOCK);
+						searchBlock(queryMatrix, q0, q1, targetMatrix, targetIndices, queryIndices, result, taskDistances,
+						    taskPositions);
+					}
+					synchronized (reverseDistances) {
+						for (int t = 0; t < targetIndices.length; t++) {
+							if (taskPositions[t] >= 0 && (taskDistances[t] < reverseDistances[t]
+							    || (taskDistances[t] == reverseDistances[t] && taskPositions[t] < reversePositions[t]))) {
+								reverseDistances[t] = taskDistances[t];
+								reversePositions[t] = taskPositions[t];
+							}
+						}
+					}
+				});
+
+				for (int t = 0; t < targetIndices.length; t++) {
+					reverseNearest[targetIndices[t]] = (reversePositions[t] >= 0) ? queryIndices[reversePositions[t]] : -1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Searches the nearest targets of a block of packed queries, and updates the
+	 * nearest query of each target if needed.
+	 */
+	private static void searchBlock(float[] queryMatrix, int q0, int q1, float[] targetMatrix, int[] targetIndices,
+	    int[] queryIndices, MatchResult result, float[] reverseDistances, int[] reversePositions) {
+		int k = result.getK();
+		int n = q1 - q0;
+		int[] positions = new int[n * k];
+		float[] distances = new float[n * k];
+		Arrays.fill(positions, -1);
+		Arrays.fill(distances, MAX_DISTANCE);
+
+		for (int t0 = 0; t0 < targetIndices.length; t0 += TARGET_BLOCK) {
+			int t1 = Math.min(targetIndices.length, t0 + TARGET_BLOCK);
+			for (int q = q0; q < q1; q++) {
+				int base = (q - q0) * k;
+				float worst = distances[base + k - 1];
+				for (int t = t0; t < t1; t++) {
+					float d = distance(queryMatrix, q * D, targetMatrix, t * D);
+					// We select the k closest descriptors
+					if (worst > d) {
+						worst = insert(positions, distances, base, k, t, d);
+					}
+					if (reverseDistances != null && reverseDistances[t] > d) {
+						reverseDistances[t] = d;
+						reversePositions[t] = q;
+					}
+				}
+			}
+		}
+
+		for (int q = q0; q < q1; q++) {
+			int base = (q - q0) * k;
+			for (int r = 0; r < k; r++) {
+				int position = positions[base + r];
+				result.setNeighbour(queryIndices[q], r, (position >= 0) ? targetIndices[position] : -1, distances[base + r]);
+			}
+		}
+	}
+
+	/**
+	 * Inserts a neighbour in a sorted list of k neighbours, after the neighbours
+	 * at the same distance. The farthest neighbour is dropped.
+	 * 
+	 * @param positions
+	 *          Neighbours of the lists.
+	 * @param distances
+	 *          Distances of the neighbours.
+	 * @param base
+	 *          Start of the list.
+	 * @param k
+	 *          Length of the list.
+	 * @param position
+	 *          Neighbour to insert.
+	 * @param distance
+	 *          Distance of the neighbour, lower than the last one of the list.
+	 * @return The new distance of the last neighbour of the list.
+	 */
+	static float insert(int[] positions, float[] distances, int base, int k, int position, float distance) {
+		int j = base + k - 1;
+		while (j > base && distances[j - 1] > distance) {
+			distances[j] = distances[j - 1];
+			positions[j] = positions[j - 1];
+			j--;
+		}
+		distances[j] = distance;
+		positions[j] = position;
+		return distances[base + k - 1];
+	}
+
+	/**
+	 * Computes the squared euclidean distance between two descriptors.
+	 * 
+	 * @param a
+	 *          Matrix of the first descriptor.
+	 * @param i
+	 *          Offset of the first descriptor.
+	 * @param b
+	 *          Matrix of the second descriptor.
+	 * @param j
+	 *          Offset of the second descriptor.
+	 * @return The squared distance.
+	 */
+	static float distance(float[] a, int i, float[] b, int j) {
+		// Independent partial sums let the loads and products overlap.
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		for (int k = 0; k < D; k += 4) {
+			float e0 = a[i + k] - b[j + k];
+			float e1 = a[i + k + 1] - b[j + k + 1];
+			float e2 = a[i + k + 2] - b[j + k + 2];
+			float e3 = a[i + k + 3] - b[j + k + 3];
+			s0 += e0 * e0;
+			s1 += e1 * e1;
+			s2 += e2 * e2;
+			s3 += e3 * e3;
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * @param features
+	 * @param sign
+	 * @return The indices of the features with the given sign of the Laplacian,
+	 *         in increasing order.
+	 */
+	static int[] getIndices(FeatureSet features, boolean sign) {
+		int count = 0;
+		for (int i = 0; i < features.size(); i++) {
+			if (features.isSignLaplacian(i) == sign) {
+				count++;
+			}
+		}
+		int[] indices = new int[count];
+		for (int i = 0, k = 0; i < features.size(); i++) {
+			if (features.isSignLaplacian(i) == sign) {
+				indices[k++] = i;
+			}
+		}
+		return indices;
+	}
+
+	/**
+	 * Copies the descriptors of some features in a contiguous matrix.
+	 * 
+	 * @param features
+	 * @param indices
+	 *          The features to copy.
+	 * @return The descriptor matrix of the features, in the order of the indices.
+	 */
+	static float[] pack(FeatureSet features, int[] indices) {
+		float[] source = features.getDescriptors();
+		float[] matrix = new float[indices.length * D];
+		for (int k = 0; k < indices.length; k++) {
+			System.arraycopy(source, indices[k] * D, matrix, k * D, D);
+		}
+		return matrix;
+	}
+}
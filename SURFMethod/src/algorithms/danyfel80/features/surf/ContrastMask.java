@@ -0,0 +1,172 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.concurrent.ForkJoinPool;
+
+import icy.roi.BooleanMask2D;
+
+/**
+ * Tiles of an image whose contrast is too low for any key point to be detected
+ * in them. The box filters of the Hessian have a null sum and are normalized by
+ * their norm, so each second order derivative is bounded by the square root of
+ * the sum of squared deviations (SSD) of the image over the support of the
+ * filter, and the Hessian response by that SSD. A tile is flat when the SSD of
+ * the tile extended by the reach of the largest filter and by one sample of the
+ * last octave is below the threshold: no response of the tile nor of its
+ * neighbour samples can then exceed the threshold in any octave, so the
+ * responses of the tile can be skipped without changing the detected key
+ * points nor their interpolation. The SSD of each window is read from the
+ * integral images of the values and of the squared values.
+ * 
+ * Tiles lying away from a region of interest can be skipped as well (see
+ * {@link #skipOutside(BooleanMask2D, int, int)}).
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class ContrastMask {
+
+	/**
+	 * Size of the tiles in pixels. It is a multiple of the sample step of the
+	 * last octave, so that each tile covers whole samples in every octave.
+	 */
+	public static final int TILE_SIZE = 64;
+
+	private int columns, rows;
+	private boolean[] skipped;
+	private int skippedCount;
+
+	/**
+	 * Constructor of a mask where no tile is skipped.
+	 * 
+	 * @param width
+	 *          Width of the image.
+	 * @param height
+	 *          Height of the image.
+	 */
+	public ContrastMask(int width, int height) {
+		columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+		rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+		skipped = new boolean[columns * rows];
+	}
+
+	/**
+	 * Constructor skipping the flat tiles of an image.
+	 * 
+	 * @param integral
+	 *          Integral image of the image.
+	 * @param squared
+	 *          Integral image of the squared values of the image, with the same
+	 *          padding (see {@link IntegralImageBuilder#buildSquared()}).
+	 * @param width
+	 *          Width of the image.
+	 * @param height
+	 *          Height of the image.
+	 * @param threshold
+	 *          Threshold for detection of the Hessian.
+	 * @param pool
+	 *          The pool to use, or null to compute the tiles on the calling
+	 *          thread.
+	 */
+	public ContrastMask(IntegralImage integral, LongIntegralImage squared, int width, int height, double threshold,
+	    ForkJoinPool pool) {
+		this(width, height);
+
+		// Windows are kept in the padded image, whose first column and row are
+		// never covered by the filters.
+		final int reach = SURFMethodUtils.getHessianExtent() + SURFMethodUtils.getMaxSample();
+		final int padding = integral.getPadding();
+		final int[] counts = new int[rows];
+		SURFMethodUtils.parallelFor(pool, 0, rows, 1, (start, end) -> {
+			for (int row = start; row < end; row++) {
+				int ya = Math.max(1 - padding, row * TILE_SIZE - reach);
+				int yb = Math.min(height + padding, Math.min(height, (row + 1) * TILE_SIZE) + reach);
+				for (int column = 0; column < columns; column++) {
+					int xa = Math.max(1 - padding, column * TILE_SIZE - reach);
+					int xb = Math.min(width + padding, Math.min(width, (column + 1) * TILE_SIZE) + reach);
+					long n = (long) (xb - xa) * (yb - ya);
+					long sum = integral.boxSum(xa, ya, xb, yb);
+					long sumSquares = squared.boxSum(xa, ya, xb, yb);
+					// n * SSD, computed exactly
+					long deviations = n * sumSquares - sum * sum;
+					if (deviations < threshold * n) {
+						skipped[row * columns + column] = true;
+						counts[row]++;
+					}
+				}
+			}
+		});
+		for (int row = 0; row < rows; row++) {
+			skippedCount += counts[row];
+		}
+	}
+
+	/**
+	 * Skips the tiles lying away from a region of interest: the tiles whose
+	 * extension by two samples of the last octave and a pixel holds no pixel of
+	 * the region. A key point interpolated inside the region lies within a
+	 * sample and a pixel of its sample, so neither its sample nor the samples it
+	 * is compared with are affected.
+	 * 
+	 * @param mask
+	 *          The region of interest, in the coordinates of the sequence.
+	 * @param x
+	 * @param y
+	 *          Position of the image in the sequence.
+	 */
+	public void skipOutside(BooleanMask2D mask, int x, int y) {
+		final int reach = 2 * SURFMethodUtils.getMaxSample() + 1;
+		boolean[] near = new boolean[columns * rows];
+		for (int j = 0; j < mask.bounds.height; j++) {
+			int py = mask.bounds.y + j - y;
+			int row0 = Math.max(0, Math.floorDiv(py - reach, TILE_SIZE));
+			int row1 = Math.min(rows - 1, Math.floorDiv(py + reach, TILE_SIZE));
+			for (int i = 0, k = j * mask.bounds.width; i < mask.bounds.width; i++, k++) {
+				if (mask.mask[k]) {
+					int px = mask.bounds.x + i - x;
+					int column0 = Math.max(0, Math.floorDiv(px - reach, TILE_SIZE));
+					int column1 = Math.min(columns - 1, Math.floorDiv(px + reach, TILE_SIZE));
+					for (int row = row0; row <= row1; row++) {
+						for (int column = column0; column <= column1; column++) {
+							near[row * columns + column] = true;
+						}
+					}
+				}
+			}
+		}
+		for (int t = 0; t < skipped.length; t++) {
+			if (!near[t] && !skipped[t]) {
+				skipped[t] = true;
+				skippedCount++;
+			}
+		}
+	}
+
+	/**
+	 * @param column
+	 * @param row
+	 * @return True if the Hessian is not computed in the tile.
+	 */
+	public boolean isSkipped(int column, int row) {
+		return skipped[row * columns + column];
+	}
+
+	/**
+	 * @return Amount of skipped tiles.
+	 */
+	public int getSkippedCount() {
+		return skippedCount;
+	}
+
+	/**
+	 * @return Amount of columns of tiles.
+	 */
+	public int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return Amount of rows of tiles.
+	 */
+	public int getRows() {
+		return rows;
+	}
+}
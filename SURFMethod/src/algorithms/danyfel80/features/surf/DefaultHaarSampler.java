@@ -0,0 +1,33 @@
+package algorithms.danyfel80.features.surf;
+
+/**
+ * Haar sampler evaluating each point through
+ * {@link IntegralImage#haarX(int, int, int)} and
+ * {@link IntegralImage#haarY(int, int, int)}. Used for integral images without
+ * a dedicated sampler.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class DefaultHaarSampler extends HaarSampler {
+
+	private IntegralImage intSeq;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param intSeq
+	 *          The integral image to sample.
+	 */
+	public DefaultHaarSampler(IntegralImage intSeq) {
+		super(intSeq);
+		this.intSeq = intSeq;
+	}
+
+	@Override
+	public void evaluate() {
+		for (int k = 0; k < count; k++) {
+			responsesX[k] = intSeq.haarX(xs[k], ys[k], lambda);
+			responsesY[k] = intSeq.haarY(xs[k], ys[k], lambda);
+		}
+	}
+}
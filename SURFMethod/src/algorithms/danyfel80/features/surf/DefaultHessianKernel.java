@@ -0,0 +1,67 @@
+package algorithms.danyfel80.features.surf;
+
+/**
+ * Hessian kernel evaluating each pixel through
+ * {@link IntegralImage#squareConvolutionXY(int, int, int, int, int, int)}. Used
+ * for integral images without a dedicated kernel.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class DefaultHessianKernel implements HessianKernel {
+
+	private IntegralImage intSeq;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param intSeq
+	 *          The integral image to filter.
+	 */
+	public DefaultHessianKernel(IntegralImage intSeq) {
+		this.intSeq = intSeq;
+	}
+
+	@Override
+	public void computeRow(HessianLayer layer, int y, int x0, int x1, int sample, int l, double[] traces) {
+		double Dxx, Dxy, Dyy;
+		int x, xcoo, ycoo, lp1, l3, mlp1p2, lp1d2, l2p1;
+		double nxy, nxx;
+
+		// These variables are precomputed to allow fast computations.
+		// They correspond exactly to the Gamma of the formula given in the
+		// article for
+		// the second order filters.
+		lp1 = -l + 1;
+		l3 = 3 * l;
+		lp1d2 = (-l + 1) / 2;
+		mlp1p2 = (-l + 1) / 2 - l;
+		l2p1 = 2 * l - 1;
+
+		nxx = Math.sqrt(6 * l * (2 * l - 1));// Frobenius norm of the xx and
+		                                     // yy filters
+		nxy = Math.sqrt(4 * l * l);// Frobenius of the xy filter.
+
+		for (x = x0; x < x1; x++) {
+			// Sampling
+			xcoo = x * sample;
+			ycoo = y * sample;
+
+			// Second order filters
+			Dxx = intSeq.squareConvolutionXY(lp1, mlp1p2, l2p1, l3, xcoo, ycoo)
+			    - 3 * intSeq.squareConvolutionXY(lp1, lp1d2, l2p1, l, xcoo, ycoo);
+			Dxx /= nxx;
+
+			Dyy = intSeq.squareConvolutionXY(mlp1p2, lp1, l3, l2p1, xcoo, ycoo)
+			    - 3 * intSeq.squareConvolutionXY(lp1d2, lp1, l, l2p1, xcoo, ycoo);
+			Dyy /= nxx;
+			Dxy = intSeq.squareConvolutionXY(1, 1, l, l, xcoo, ycoo) + intSeq.squareConvolutionXY(0, 0, -l, -l, xcoo, ycoo)
+			    + intSeq.squareConvolutionXY(1, 0, l, -l, xcoo, ycoo) + intSeq.squareConvolutionXY(0, 1, -l, l, xcoo, ycoo);
+
+			Dxy /= nxy;
+
+			// Computation of the Hessian and Laplacian
+			layer.setResponse(x, y, Dxx * Dyy - 0.8317 * Dxy * Dxy);
+			traces[x] = Dxx + Dyy;
+		}
+	}
+}
@@ -1,7 +1,7 @@
 package algorithms.danyfel80.features.surf;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Descriptor of a keypoint, with its vector descriptor and several other
@@ -10,6 +10,35 @@ import java.util.List;
  * @author Daniel Felipe Gonzalez Obando
  */
 public class Descriptor {
+	/**
+	 * Amount of samples on each side of the descriptor window.
+	 */
+	private static final int WINDOW_SIZE = SURFMethodUtils.DESCRIPTOR_SIZE * 5;
+	/**
+	 * Position of each sample of the window relative to the key point, in scale
+	 * units and before rotation.
+	 */
+	private static final double[] WINDOW_OFFSETS;
+	/**
+	 * Gaussian weight of each sample of the window, row-major.
+	 */
+	private static final double[] WINDOW_WEIGHTS;
+
+	static {
+		WINDOW_OFFSETS = new double[WINDOW_SIZE];
+		for (int i = 0; i < SURFMethodUtils.DESCRIPTOR_SIZE; i++) {
+			for (int k = 0; k < 5; k++) {
+				WINDOW_OFFSETS[i * 5 + k] = (i - 2) * 5 + k + 0.5;
+			}
+		}
+		WINDOW_WEIGHTS = new double[WINDOW_SIZE * WINDOW_SIZE];
+		for (int a = 0; a < WINDOW_SIZE; a++) {
+			for (int b = 0; b < WINDOW_SIZE; b++) {
+				WINDOW_WEIGHTS[a * WINDOW_SIZE + b] = SURFMethodUtils.gaussian(WINDOW_OFFSETS[a], WINDOW_OFFSETS[b], 3.3);
+			}
+		}
+	}
+
 	/**
 	 * The key point.
 	 */
@@ -52,77 +81,121 @@ public class Descriptor {
 	}
 
 	/**
-	 * Sets the descriptors of the found features.
+	 * Sets the descriptors of a feature set. Features are processed in chunks on
+	 * the given pool.
 	 * 
 	 * @param intSeq
 	 *          Integral sequence
-	 * @param descriptors
+	 * @param features
 	 *          Features found for descriptor
+	 * @param pool
+	 *          The pool to use, or null to compute the descriptors on the calling
+	 *          thread.
 	 */
-	public static void setupVectorDescriptors(IntegralSequence intSeq, List<Descriptor> descriptors) {
-		for (Descriptor descriptor : descriptors) {
-			KeyPoint kp = descriptor.getKeyPoint();
-			double scale = kp.getScale();
-			List<VectorDescriptor> vectorDescriptors = new ArrayList<>();
-			// Divide in a 4x4 zone the space around the interest point
-
-			// First compute the orientation
-			double cosP = Math.cos(kp.getOrientation());
-			double sinP = Math.sin(kp.getOrientation());
-			double norm = 0, u, v, gauss, responseU, responseV, responseX, responseY;
-
-			// Divide in 16 sectors the space around the interest point.
-			for (int i = 0; i < SURFMethodUtils.DESCRIPTOR_SIZE; i++) {
-				for (int j = 0; j < SURFMethodUtils.DESCRIPTOR_SIZE; j++) {
-					double sumDx = 0, sumDy = 0, sumAbsDx = 0, sumAbsDy = 0;
-
-					// Then each 4x4 is subsampled into a 5x5 zone
-					for (int k = 0; k < 5; k++) {
-						for (int l = 0; l < 5; l++) {
-							// We precompute Haar answers
-							u = kp.getX() + scale * (cosP * ((i - 2) * 5 + k + 0.5) - sinP * ((j - 2) * 5 + l + 0.5));
-							v = kp.getY() + scale * (sinP * ((i - 2) * 5 + k + 0.5) + cosP * ((j - 2) * 5 + l + 0.5));
-
-							// (u,v) are already translated of 0.5, which means
-							// that there is no round-off to perform: one takes
-							// the integer part of the coordinates.
-							responseX = intSeq.haarX((int) u, (int) v, (int) Math.round(scale));
-							responseY = intSeq.haarY((int) u, (int) v, (int) Math.round(scale));
-
-							// Gaussian weight
-							gauss = SURFMethodUtils.gaussian(((i - 2) * 5 + k + 0.5), ((j - 2) * 5 + l + 0.5), 3.3);
-
-							// Rotation of the axis
-							responseU = gauss * (responseX * cosP + responseY * sinP);
-							responseV = gauss * (-responseX * sinP + responseY * cosP);
-
-							// The descriptors
-							sumDx += responseU;
-							sumDy += responseV;
-							sumAbsDx += Math.abs(responseU);
-							sumAbsDy += Math.abs(responseV);
-						}
-					}
-
-					// Compute the norm of the vector
-					norm += sumDx * sumDx + sumDy * sumDy + sumAbsDx * sumAbsDx + sumAbsDy * sumAbsDy;
-
-					vectorDescriptors.add(new VectorDescriptor(sumDx, sumDy, sumAbsDx, sumAbsDy));
+	public static void setupVectorDescriptors(IntegralImage intSeq, FeatureSet features, ForkJoinPool pool) {
+		SURFMethodUtils.parallelFor(pool, 0, features.size(), SURFMethodUtils.KEY_POINT_CHUNK, (start, end) -> {
+			HaarSampler sampler = HaarSampler.create(intSeq);
+			double[] vector = new double[FeatureSet.DESCRIPTOR_LENGTH];
+			float[] matrix = features.getDescriptors();
+			for (int k = start; k < end; k++) {
+				computeVectorDescriptor(sampler, features.getX(k), features.getY(k), features.getScale(k),
+				    features.getOrientation(k), vector);
+				for (int i = 0, j = k * FeatureSet.DESCRIPTOR_LENGTH; i < vector.length; i++, j++) {
+					matrix[j] = (float) vector[i];
 				}
 			}
+		});
+	}
 
-			norm = Math.sqrt(norm);
-			if (norm != 0.0) {
-				for (int i = 0; i < SURFMethodUtils.DESCRIPTOR_SIZE * SURFMethodUtils.DESCRIPTOR_SIZE; i++) {
-					VectorDescriptor d = vectorDescriptors.get(i);
-					d.setSumDx(d.getSumDx() / norm);
-					d.setSumDy(d.getSumDy() / norm);
-					d.setSumAbsDx(d.getSumAbsDx() / norm);
-					d.setSumAbsDy(d.getSumAbsDy() / norm);
+	/**
+	 * Computes the vector descriptor of a key point.
+	 * 
+	 * @param sampler
+	 *          Haar sampler of the integral sequence
+	 * @param x
+	 *          The x-coordinate of the key point.
+	 * @param y
+	 *          The y-coordinate of the key point.
+	 * @param scale
+	 *          The scale of the key point.
+	 * @param orientation
+	 *          The orientation of the key point.
+	 * @param vector
+	 *          The normalized descriptor, ordered as sum dx, sum dy, sum |dx|,
+	 *          sum |dy| for each cell.
+	 */
+	private static void computeVectorDescriptor(HaarSampler sampler, double x, double y, double scale,
+	    double orientation, double[] vector) {
+		// Divide in a 4x4 zone the space around the interest point
+
+		// First compute the orientation
+		double cosP = Math.cos(orientation);
+		double sinP = Math.sin(orientation);
+		double norm = 0, u, v, gauss, responseU, responseV, responseX, responseY;
+
+		// We precompute Haar answers of the whole window, in the order they are
+		// accumulated.
+		sampler.reset((int) Math.round(scale), WINDOW_SIZE * WINDOW_SIZE);
+		for (int i = 0; i < SURFMethodUtils.DESCRIPTOR_SIZE; i++) {
+			for (int j = 0; j < SURFMethodUtils.DESCRIPTOR_SIZE; j++) {
+				for (int k = 0; k < 5; k++) {
+					for (int l = 0; l < 5; l++) {
+						u = x + scale * (cosP * WINDOW_OFFSETS[i * 5 + k] - sinP * WINDOW_OFFSETS[j * 5 + l]);
+						v = y + scale * (sinP * WINDOW_OFFSETS[i * 5 + k] + cosP * WINDOW_OFFSETS[j * 5 + l]);
+
+						// (u,v) are already translated of 0.5, which means
+						// that there is no round-off to perform: one takes
+						// the integer part of the coordinates.
+						sampler.add((int) u, (int) v);
+					}
 				}
 			}
+		}
+		sampler.evaluate();
+
+		// Divide in 16 sectors the space around the interest point.
+		int n = 0;
+		for (int i = 0; i < SURFMethodUtils.DESCRIPTOR_SIZE; i++) {
+			for (int j = 0; j < SURFMethodUtils.DESCRIPTOR_SIZE; j++) {
+				double sumDx = 0, sumDy = 0, sumAbsDx = 0, sumAbsDy = 0;
+
+				// Then each 4x4 is subsampled into a 5x5 zone
+				for (int k = 0; k < 5; k++) {
+					for (int l = 0; l < 5; l++, n++) {
+						responseX = sampler.getResponseX(n);
+						responseY = sampler.getResponseY(n);
+
+						// Gaussian weight
+						gauss = WINDOW_WEIGHTS[(i * 5 + k) * WINDOW_SIZE + j * 5 + l];
+
+						// Rotation of the axis
+						responseU = gauss * (responseX * cosP + responseY * sinP);
+						responseV = gauss * (-responseX * sinP + responseY * cosP);
+
+						// The descriptors
+						sumDx += responseU;
+						sumDy += responseV;
+						sumAbsDx += Math.abs(responseU);
+						sumAbsDy += Math.abs(responseV);
+					}
+				}
 
-			descriptor.setVectorDescriptors(vectorDescriptors);
+				// Compute the norm of the vector
+				norm += sumDx * sumDx + sumDy * sumDy + sumAbsDx * sumAbsDx + sumAbsDy * sumAbsDy;
+
+				int cell = 4 * (i * SURFMethodUtils.DESCRIPTOR_SIZE + j);
+				vector[cell] = sumDx;
+				vector[cell + 1] = sumDy;
+				vector[cell + 2] = sumAbsDx;
+				vector[cell + 3] = sumAbsDy;
+			}
+		}
+
+		norm = Math.sqrt(norm);
+		if (norm != 0.0) {
+			for (int i = 0; i < vector.length; i++) {
+				vector[i] /= norm;
+			}
 		}
 	}
 }
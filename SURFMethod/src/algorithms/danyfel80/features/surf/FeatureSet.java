@@ -0,0 +1,291 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar storage of SURF features. The key points are stored in parallel
+ * primitive arrays and the descriptors in a single row-major matrix of
+ * {@link #DESCRIPTOR_LENGTH} floats per feature. Each row is ordered as sum dx,
+ * sum dy, sum |dx|, sum |dy| for each cell of the descriptor window.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class FeatureSet {
+
+	/**
+	 * Amount of values of a descriptor.
+	 */
+	public static final int DESCRIPTOR_LENGTH = SURFMethodUtils.DESCRIPTOR_SIZE * SURFMethodUtils.DESCRIPTOR_SIZE * 4;
+
+	private int size;
+	private double[] x, y, scale, orientation, response;
+	private boolean[] signLaplacian;
+	private float[] descriptors;
+
+	private Descriptor[] view;
+
+	/**
+	 * Constructor of an empty set.
+	 */
+	public FeatureSet() {
+		this(16);
+	}
+
+	/**
+	 * Constructor of an empty set.
+	 * 
+	 * @param capacity
+	 *          Expected amount of features.
+	 */
+	public FeatureSet(int capacity) {
+		capacity = Math.max(1, capacity);
+		x = new double[capacity];
+		y = new double[capacity];
+		scale = new double[capacity];
+		orientation = new double[capacity];
+		response = new double[capacity];
+		signLaplacian = new boolean[capacity];
+		descriptors = new float[capacity * DESCRIPTOR_LENGTH];
+	}
+
+	/**
+	 * Creates a feature set holding a copy of a list of descriptors. The
+	 * descriptor values are stored as floats.
+	 * 
+	 * @param descriptors
+	 *          The descriptors to copy. Descriptors without vector are stored
+	 *          with a null vector.
+	 * @return The feature set.
+	 */
+	public static FeatureSet fromDescriptors(List<Descriptor> descriptors) {
+		FeatureSet features = new FeatureSet(descriptors.size());
+		for (Descriptor descriptor : descriptors) {
+			KeyPoint kp = descriptor.getKeyPoint();
+			int i = features.add(kp.getX(), kp.getY(), kp.getScale(), kp.isSignLaplacian());
+			features.orientation[i] = kp.getOrientation();
+			List<VectorDescriptor> vectorDescriptors = descriptor.getVectorDescriptors();
+			if (vectorDescriptors != null) {
+				int j = i * DESCRIPTOR_LENGTH;
+				for (VectorDescriptor vd : vectorDescriptors) {
+					features.descriptors[j++] = (float) vd.getSumDx();
+					features.descriptors[j++] = (float) vd.getSumDy();
+					features.descriptors[j++] = (float) vd.getSumAbsDx();
+					features.descriptors[j++] = (float) vd.getSumAbsDy();
+				}
+			}
+		}
+		return features;
+	}
+
+	/**
+	 * Adds a key point without orientation nor descriptor.
+	 * 
+	 * @param x
+	 *          The x-coordinate of the key point.
+	 * @param y
+	 *          The y-coordinate of the key point.
+	 * @param scale
+	 *          The scale at which the key point was detected.
+	 * @param signLaplacian
+	 *          The sign of the Laplacian at the key point.
+	 * @return The index of the feature.
+	 */
+	public int add(double x, double y, double scale, boolean signLaplacian) {
+		return add(x, y, scale, 0, signLaplacian);
+	}
+
+	/**
+	 * Adds a key point without orientation nor descriptor.
+	 * 
+	 * @param x
+	 *          The x-coordinate of the key point.
+	 * @param y
+	 *          The y-coordinate of the key point.
+	 * @param scale
+	 *          The scale at which the key point was detected.
+	 * @param response
+	 *          The Hessian response at the key point.
+	 * @param signLaplacian
+	 *          The sign of the Laplacian at the key point.
+	 * @return The index of the feature.
+	 */
+	public int add(double x, double y, double scale, double response, boolean signLaplacian) {
+		ensureCapacity(size + 1);
+		this.x[size] = x;
+		this.y[size] = y;
+		this.scale[size] = scale;
+		this.response[size] = response;
+		this.orientation[size] = 0;
+		this.signLaplacian[size] = signLaplacian;
+		Arrays.fill(descriptors, size * DESCRIPTOR_LENGTH, (size + 1) * DESCRIPTOR_LENGTH, 0f);
+		view = null;
+		return size++;
+	}
+
+	/**
+	 * Adds a copy of a feature of another set.
+	 * 
+	 * @param features
+	 *          The set holding the feature.
+	 * @param i
+	 *          The index of the feature in its set.
+	 * @return The index of the feature in this set.
+	 */
+	public int add(FeatureSet features, int i) {
+		int k = add(features.x[i], features.y[i], features.scale[i], features.response[i], features.signLaplacian[i]);
+		orientation[k] = features.orientation[i];
+		System.arraycopy(features.descriptors, i * DESCRIPTOR_LENGTH, descriptors, k * DESCRIPTOR_LENGTH,
+		    DESCRIPTOR_LENGTH);
+		return k;
+	}
+
+	/**
+	 * Creates a set holding copies of some features of this set.
+	 * 
+	 * @param indices
+	 *          The features to copy.
+	 * @return The set of the features, in the order of the indices.
+	 */
+	public FeatureSet select(int[] indices) {
+		FeatureSet features = new FeatureSet(indices.length);
+		for (int i : indices) {
+			features.add(this, i);
+		}
+		return features;
+	}
+
+	/**
+	 * Grows the arrays to hold at least the given amount of features.
+	 * 
+	 * @param capacity
+	 *          Minimum amount of features.
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > x.length) {
+			int length = Math.max(capacity, x.length + (x.length >> 1));
+			x = Arrays.copyOf(x, length);
+			y = Arrays.copyOf(y, length);
+			scale = Arrays.copyOf(scale, length);
+			orientation = Arrays.copyOf(orientation, length);
+			response = Arrays.copyOf(response, length);
+			signLaplacian = Arrays.copyOf(signLaplacian, length);
+			descriptors = Arrays.copyOf(descriptors, length * DESCRIPTOR_LENGTH);
+		}
+	}
+
+	/**
+	 * Moves every key point.
+	 * 
+	 * @param dx
+	 *          Translation in x.
+	 * @param dy
+	 *          Translation in y.
+	 */
+	public void translate(double dx, double dy) {
+		for (int i = 0; i < size; i++) {
+			x[i] += dx;
+			y[i] += dy;
+		}
+		view = null;
+	}
+
+	/**
+	 * @return Amount of features.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public double getX(int i) {
+		return x[i];
+	}
+
+	public double getY(int i) {
+		return y[i];
+	}
+
+	public double getScale(int i) {
+		return scale[i];
+	}
+
+	/**
+	 * @param i
+	 * @return The Hessian response at the key point, 0 if it is unknown.
+	 */
+	public double getResponse(int i) {
+		return response[i];
+	}
+
+	public double getOrientation(int i) {
+		return orientation[i];
+	}
+
+	public void setOrientation(int i, double orientation) {
+		this.orientation[i] = orientation;
+		view = null;
+	}
+
+	public boolean isSignLaplacian(int i) {
+		return signLaplacian[i];
+	}
+
+	/**
+	 * @return The descriptor matrix, row-major with {@link #DESCRIPTOR_LENGTH}
+	 *         values per feature. It can be larger than the set. Writes to it
+	 *         change the descriptors of the set.
+	 */
+	public float[] getDescriptors() {
+		return descriptors;
+	}
+
+	/**
+	 * Gives a view of the set as a list of descriptors, for compatibility with
+	 * the object model. The descriptor objects are created when they are first
+	 * accessed. Later changes of the set are not reflected in the objects
+	 * already created.
+	 * 
+	 * @return The list of the descriptors of the set.
+	 */
+	public List<Descriptor> asDescriptors() {
+		return new AbstractList<Descriptor>() {
+			@Override
+			public Descriptor get(int i) {
+				if (i < 0 || i >= size) {
+					throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+				}
+				if (view == null) {
+					view = new Descriptor[size];
+				}
+				if (view[i] == null) {
+					view[i] = createDescriptor(i);
+				}
+				return view[i];
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Creates the descriptor object of a feature.
+	 * 
+	 * @param i
+	 *          The index of the feature.
+	 * @return The descriptor of the feature.
+	 */
+	private Descriptor createDescriptor(int i) {
+		KeyPoint kp = new KeyPoint(x[i], y[i], scale[i], orientation[i], signLaplacian[i]);
+		List<VectorDescriptor> vectorDescriptors = new ArrayList<>(DESCRIPTOR_LENGTH / 4);
+		for (int j = i * DESCRIPTOR_LENGTH; j < (i + 1) * DESCRIPTOR_LENGTH; j += 4) {
+			vectorDescriptors.add(
+			    new VectorDescriptor(descriptors[j], descriptors[j + 1], descriptors[j + 2], descriptors[j + 3]));
+		}
+		return new Descriptor(kp, vectorDescriptors);
+	}
+}
@@ -0,0 +1,236 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Nearest neighbours search between the descriptors of two feature sets guided
+ * by a known transform between their images. The targets are indexed by
+ * position in a uniform grid whose cells are as large as the search radius,
+ * and each query is only compared with the targets lying within the radius of
+ * its position predicted by the transform, with the same sign of the
+ * Laplacian, and whose scale is consistent with the predicted scale. The cost
+ * of the search is hence proportional to the amount of queries times the
+ * density of targets around the predicted positions.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class GuidedMatcher {
+
+	/**
+	 * Default maximum ratio between the scale of a target and the predicted
+	 * scale of a query (and conversely).
+	 */
+	public static final double DEFAULT_SCALE_TOLERANCE = 1.5;
+
+	private static final int D = FeatureSet.DESCRIPTOR_LENGTH;
+
+	private FeatureSet targets;
+	private double radius;
+	private double scaleTolerance = DEFAULT_SCALE_TOLERANCE;
+	private ForkJoinPool pool;
+
+	// Grid of the targets
+	private double minX, minY, cellSize;
+	private int columns, rows;
+	private int[] cellStarts;
+	private int[] entries;
+	private double[] logScales;
+
+	/**
+	 * Constructor indexing the targets by position.
+	 * 
+	 * @param targets
+	 *          The features to search in.
+	 * @param radius
+	 *          Maximum distance, in pixels, between a target and the predicted
+	 *          position of a query.
+	 * @param pool
+	 *          The pool to use, or null to search on the calling thread.
+	 */
+	public GuidedMatcher(FeatureSet targets, double radius, ForkJoinPool pool) {
+		if (radius <= 0) {
+			throw new IllegalArgumentException("The search radius must be positive.");
+		}
+		this.targets = targets;
+		this.radius = radius;
+		this.pool = pool;
+		buildGrid();
+	}
+
+	/**
+	 * Sets the maximum ratio between the scale of a target and the predicted
+	 * scale of a query, and conversely.
+	 * 
+	 * @param scaleTolerance
+	 *          Ratio at least 1, or infinity to ignore the scales.
+	 */
+	public void setScaleTolerance(double scaleTolerance) {
+		if (!(scaleTolerance >= 1)) {
+			throw new IllegalArgumentException("The scale tolerance must be at least 1.");
+		}
+		this.scaleTolerance = scaleTolerance;
+	}
+
+	/**
+	 * @return The features searched.
+	 */
+	public FeatureSet getTargets() {
+		return targets;
+	}
+
+	/**
+	 * Sorts the targets by cell of the grid. The cells are enlarged if needed so
+	 * that there are not many more cells than targets.
+	 */
+	private void buildGrid() {
+		int n = targets.size();
+		minX = Double.POSITIVE_INFINITY;
+		minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			minX = Math.min(minX, targets.getX(i));
+			minY = Math.min(minY, targets.getY(i));
+			maxX = Math.max(maxX, targets.getX(i));
+			maxY = Math.max(maxY, targets.getY(i));
+		}
+		if (n == 0) {
+			minX = minY = maxX = maxY = 0;
+		}
+		cellSize = radius;
+		long maxCells = 4L * n + 16;
+		do {
+			columns = (int) Math.min(Integer.MAX_VALUE, (long) ((maxX - minX) / cellSize) + 1);
+			rows = (int) Math.min(Integer.MAX_VALUE, (long) ((maxY - minY) / cellSize) + 1);
+			if ((long) columns * rows > maxCells) {
+				cellSize *= 2;
+			}
+		} while ((long) columns * rows > maxCells);
+
+		// Counting sort of the targets by cell
+		cellStarts = new int[columns * rows + 1];
+		int[] cells = new int[n];
+		for (int i = 0; i < n; i++) {
+			cells[i] = getCell(targets.getX(i), targets.getY(i));
+			cellStarts[cells[i] + 1]++;
+		}
+		for (int c = 0; c < columns * rows; c++) {
+			cellStarts[c + 1] += cellStarts[c];
+		}
+		entries = new int[n];
+		logScales = new double[n];
+		for (int i = 0; i < n; i++) {
+			logScales[i] = Math.log(targets.getScale(i));
+		}
+		int[] next = Arrays.copyOf(cellStarts, columns * rows);
+		for (int i = 0; i < n; i++) {
+			entries[next[cells[i]]++] = i;
+		}
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 *          Position of a target.
+	 * @return Index of the cell of the position.
+	 */
+	private int getCell(double x, double y) {
+		int column = Math.min(columns - 1, (int) ((x - minX) / cellSize));
+		int row = Math.min(rows - 1, (int) ((y - minY) / cellSize));
+		return row * columns + column;
+	}
+
+	/**
+	 * Finds, for each query, the k nearest targets around its predicted
+	 * position, with the same sign of the Laplacian and a consistent scale,
+	 * using the squared euclidean distance.
+	 * 
+	 * @param queries
+	 *          The features to match.
+	 * @param transform
+	 *          Row-major 3x3 matrix mapping the homogeneous coordinates of the
+	 *          queries to those of the targets.
+	 * @param result
+	 *          The result receiving the neighbours of each query.
+	 */
+	public void findNeighbours(FeatureSet queries, double[] transform, MatchResult result) {
+		final float[] queryMatrix = queries.getDescriptors();
+		final float[] targetMatrix = targets.getDescriptors();
+		final int k = result.getK();
+		final double h0 = transform[0], h1 = transform[1], h2 = transform[2], h3 = transform[3], h4 = transform[4],
+		    h5 = transform[5], h6 = transform[6], h7 = transform[7], h8 = transform[8];
+		// The determinant of the jacobian of the transform at (x, y) is det / w^3
+		final double determinant = h0 * (h4 * h8 - h5 * h7) - h1 * (h3 * h8 - h5 * h6) + h2 * (h3 * h7 - h4 * h6);
+		final double radius2 = radius * radius;
+		final double logTolerance = Math.log(scaleTolerance);
+
+		SURFMethodUtils.parallelFor(pool, 0, queries.size(), SURFMethodUtils.KEY_POINT_CHUNK, (start, end) -> {
+			int[] positions = new int[k];
+			float[] distances = new float[k];
+			for (int q = start; q < end; q++) {
+				Arrays.fill(positions, -1);
+				Arrays.fill(distances, BruteForceMatcher.MAX_DISTANCE);
+
+				double x = queries.getX(q), y = queries.getY(q);
+				double w = h6 * x + h7 * y + h8;
+				if (w > 0) {
+					double px = (h0 * x + h1 * y + h2) / w;
+					double py = (h3 * x + h4 * y + h5) / w;
+					double logScale = Math.log(queries.getScale(q)) + Math.log(Math.abs(determinant / (w * w * w))) / 2;
+					boolean sign = queries.isSignLaplacian(q);
+
+					int column0 = Math.max(0, (int) Math.floor((px - radius - minX) / cellSize));
+					int column1 = Math.min(columns - 1, (int) Math.floor((px + radius - minX) / cellSize));
+					int row0 = Math.max(0, (int) Math.floor((py - radius - minY) / cellSize));
+					int row1 = Math.min(rows - 1, (int) Math.floor((py + radius - minY) / cellSize));
+					float worst = distances[k - 1];
+					for (int row = row0; row <= row1; row++) {
+						for (int c = row * columns + column0, cEnd = row * columns + column1; c <= cEnd; c++) {
+							for (int e = cellStarts[c]; e < cellStarts[c + 1]; e++) {
+								int t = entries[e];
+								double dx = targets.getX(t) - px, dy = targets.getY(t) - py;
+								if (targets.isSignLaplacian(t) != sign || dx * dx + dy * dy > radius2
+								    || !(Math.abs(logScales[t] - logScale) <= logTolerance)) {
+									continue;
+								}
+								float d = BruteForceMatcher.distance(queryMatrix, q * D, targetMatrix, t * D);
+								if (worst > d) {
+									worst = BruteForceMatcher.insert(positions, distances, 0, k, t, d);
+								}
+							}
+						}
+					}
+				}
+				for (int r = 0; r < k; r++) {
+					result.setNeighbour(q, r, positions[r], distances[r]);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Inverts a transform.
+	 * 
+	 * @param transform
+	 *          Row-major 3x3 matrix.
+	 * @return The inverse matrix. It is not rescaled, so that points mapped in
+	 *         front of the camera keep a positive homogeneous coordinate.
+	 * @throws IllegalArgumentException
+	 *           If the transform is singular.
+	 */
+	public static double[] invert(double[] transform) throws IllegalArgumentException {
+		double[] h = transform;
+		// Adjugate matrix
+		double[] inverse = new double[] { h[4] * h[8] - h[5] * h[7], h[2] * h[7] - h[1] * h[8], h[1] * h[5] - h[2] * h[4],
+		    h[5] * h[6] - h[3] * h[8], h[0] * h[8] - h[2] * h[6], h[2] * h[3] - h[0] * h[5], h[3] * h[7] - h[4] * h[6],
+		    h[1] * h[6] - h[0] * h[7], h[0] * h[4] - h[1] * h[3] };
+		double determinant = h[0] * inverse[0] + h[1] * inverse[3] + h[2] * inverse[6];
+		if (determinant == 0 || Double.isNaN(determinant)) {
+			throw new IllegalArgumentException("The transform is singular.");
+		}
+		for (int i = 0; i < 9; i++) {
+			inverse[i] /= determinant;
+		}
+		return inverse;
+	}
+}
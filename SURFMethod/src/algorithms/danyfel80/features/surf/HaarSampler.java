@@ -0,0 +1,154 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates the Haar wavelet responses in x and in y of a batch of sample
+ * points at the same scale. The offsets of the corners of the wavelets are
+ * computed once per scale, then both responses of each point are read in the
+ * same pass. A sampler holds its buffers and must not be shared between
+ * threads.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public abstract class HaarSampler {
+
+	/**
+	 * Width of the integral image data.
+	 */
+	protected final int stride;
+	/**
+	 * Padding of the integral image.
+	 */
+	protected final int padding;
+	/**
+	 * Offsets of the corners of the x wavelet (0 to 7) and of the y wavelet (8 to
+	 * 15), relative to the index of the sample point, added by pairs and
+	 * subtracted by pairs as in
+	 * {@link IntegralImage#squareConvolutionXY(int, int, int, int, int, int)}.
+	 */
+	protected final int[] offsets;
+	/**
+	 * Half size of the wavelets.
+	 */
+	protected int lambda;
+
+	// Batch of sample points
+	protected int count;
+	protected int[] xs, ys;
+	protected long[] responsesX, responsesY;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param integral
+	 *          The integral image to sample.
+	 */
+	protected HaarSampler(IntegralImage integral) {
+		this.stride = integral.getWidth();
+		this.padding = integral.getPadding();
+		this.offsets = new int[16];
+		this.lambda = -1;
+		this.xs = new int[0];
+		this.ys = new int[0];
+		this.responsesX = new long[0];
+		this.responsesY = new long[0];
+	}
+
+	/**
+	 * Creates the sampler adapted to the storage of an integral image.
+	 * 
+	 * @param integral
+	 *          The integral image to sample.
+	 * @return The sampler reading the integral image.
+	 */
+	public static HaarSampler create(IntegralImage integral) {
+		if (integral instanceof IntIntegralImage) {
+			return new IntHaarSampler((IntIntegralImage) integral);
+		} else if (integral instanceof LongIntegralImage) {
+			return new LongHaarSampler((LongIntegralImage) integral);
+		} else {
+			return new DefaultHaarSampler(integral);
+		}
+	}
+
+	/**
+	 * Starts a new batch of sample points.
+	 * 
+	 * @param lambda
+	 *          Half size of the wavelets of the batch.
+	 * @param capacity
+	 *          Expected amount of sample points in the batch.
+	 */
+	public void reset(int lambda, int capacity) {
+		if (this.lambda != lambda) {
+			this.lambda = lambda;
+			HessianKernel.boxOffsets(1, -lambda - 1, -lambda - 1, lambda * 2 + 1, stride, offsets, 0);
+			HessianKernel.boxOffsets(0, -lambda - 1, lambda + 1, lambda * 2 + 1, stride, offsets, 4);
+			HessianKernel.boxOffsets(-lambda - 1, 1, 2 * lambda + 1, -lambda - 1, stride, offsets, 8);
+			HessianKernel.boxOffsets(-lambda - 1, 0, 2 * lambda + 1, lambda + 1, stride, offsets, 12);
+		}
+		ensureCapacity(capacity);
+		count = 0;
+	}
+
+	/**
+	 * Adds a sample point to the batch.
+	 * 
+	 * @param x
+	 * @param y
+	 */
+	public void add(int x, int y) {
+		if (count == xs.length) {
+			ensureCapacity(Math.max(16, 2 * count));
+		}
+		xs[count] = x;
+		ys[count] = y;
+		count++;
+	}
+
+	/**
+	 * Grows the buffers of the batch, keeping its sample points.
+	 * 
+	 * @param capacity
+	 *          Minimum amount of sample points.
+	 */
+	private void ensureCapacity(int capacity) {
+		if (xs.length < capacity) {
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			responsesX = new long[capacity];
+			responsesY = new long[capacity];
+		}
+	}
+
+	/**
+	 * @return Amount of sample points in the batch.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Computes the responses of every sample point of the batch.
+	 */
+	public abstract void evaluate();
+
+	/**
+	 * @param k
+	 * @return Haar response in x of the k-th sample point, as
+	 *         {@link IntegralImage#haarX(int, int, int)}.
+	 */
+	public long getResponseX(int k) {
+		return responsesX[k];
+	}
+
+	/**
+	 * @param k
+	 * @return Haar response in y of the k-th sample point, as
+	 *         {@link IntegralImage#haarY(int, int, int)}.
+	 */
+	public long getResponseY(int k) {
+		return responsesY[k];
+	}
+}
@@ -0,0 +1,115 @@
+package algorithms.danyfel80.features.surf;
+
+/**
+ * Computes the Hessian responses and the Laplacian of a whole sampled row, or
+ * of a range of columns of it, at once.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public interface HessianKernel {
+
+	/**
+	 * Computes the Hessian responses and the Laplacian of a range of columns of
+	 * a row of a layer. The Laplacian signs of the row are set by the caller from
+	 * the traces (see {@link HessianLayer#setLaplacianRow(int, double[])}).
+	 * 
+	 * @param layer
+	 *          The layer to fill.
+	 * @param y
+	 *          The row of the layer to compute.
+	 * @param x0
+	 *          First column to compute (inclusive).
+	 * @param x1
+	 *          Last column to compute (exclusive).
+	 * @param sample
+	 *          The sample step of the octave.
+	 * @param l
+	 *          The size of the filter (L in article).
+	 * @param traces
+	 *          Scratch buffer of at least the width of the layer, receiving the
+	 *          Laplacian (trace of the Hessian) of each pixel of the row.
+	 */
+	void computeRow(HessianLayer layer, int y, int x0, int x1, int sample, int l, double[] traces);
+
+	/**
+	 * Creates the kernel adapted to the storage of an integral image.
+	 * 
+	 * @param integral
+	 *          The integral image to filter.
+	 * @return The kernel reading the integral image.
+	 */
+	public static HessianKernel create(IntegralImage integral) {
+		if (integral instanceof IntIntegralImage) {
+			return new IntHessianKernel((IntIntegralImage) integral);
+		} else if (integral instanceof LongIntegralImage) {
+			return new LongHessianKernel((LongIntegralImage) integral);
+		} else {
+			return new DefaultHessianKernel(integral);
+		}
+	}
+
+	/**
+	 * Computes the offsets of the four corners of a box, relative to the index
+	 * of its center in the integral image data, in the order used by
+	 * {@link IntegralImage#squareConvolutionXY(int, int, int, int, int, int)}:
+	 * (b1, b2) and (a1, a2) are added, (b1, a2) and (a1, b2) are subtracted.
+	 * 
+	 * @param a
+	 *          Left
+	 * @param b
+	 *          Bottom
+	 * @param c
+	 *          Right
+	 * @param d
+	 *          Top
+	 * @param stride
+	 *          Width of the integral image data.
+	 * @param offsets
+	 *          Array receiving the four offsets.
+	 * @param index
+	 *          Position of the first offset in the array.
+	 */
+	static void boxOffsets(int a, int b, int c, int d, int stride, int[] offsets, int index) {
+		int a1 = -a;
+		int a2 = -b * stride;
+		int b1 = a1 - c;
+		int b2 = a2 - d * stride;
+		offsets[index] = b1 + b2;
+		offsets[index + 1] = a1 + a2;
+		offsets[index + 2] = b1 + a2;
+		offsets[index + 3] = a1 + b2;
+	}
+
+	/**
+	 * Computes the corner offsets of the eight boxes of the second order filters
+	 * of size l: the large and the center box of Dxx, the same for Dyy, and the
+	 * four quadrants of Dxy.
+	 * 
+	 * @param l
+	 *          The size of the filter (L in article).
+	 * @param stride
+	 *          Width of the integral image data.
+	 * @return The 32 corner offsets.
+	 */
+	static int[] filterOffsets(int l, int stride) {
+		// These variables are precomputed to allow fast computations.
+		// They correspond exactly to the Gamma of the formula given in the
+		// article for the second order filters.
+		int lp1 = -l + 1;
+		int l3 = 3 * l;
+		int lp1d2 = (-l + 1) / 2;
+		int mlp1p2 = (-l + 1) / 2 - l;
+		int l2p1 = 2 * l - 1;
+
+		int[] offsets = new int[32];
+		boxOffsets(lp1, mlp1p2, l2p1, l3, stride, offsets, 0);
+		boxOffsets(lp1, lp1d2, l2p1, l, stride, offsets, 4);
+		boxOffsets(mlp1p2, lp1, l3, l2p1, stride, offsets, 8);
+		boxOffsets(lp1d2, lp1, l, l2p1, stride, offsets, 12);
+		boxOffsets(1, 1, l, l, stride, offsets, 16);
+		boxOffsets(0, 0, -l, -l, stride, offsets, 20);
+		boxOffsets(1, 0, l, -l, stride, offsets, 24);
+		boxOffsets(0, 1, -l, l, stride, offsets, 28);
+		return offsets;
+	}
+}
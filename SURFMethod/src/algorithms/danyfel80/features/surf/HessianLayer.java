@@ -0,0 +1,182 @@
+package algorithms.danyfel80.features.surf;
+
+/**
+ * Hessian responses and Laplacian signs of one interval of an octave. The
+ * responses are stored in a contiguous row-major array and the Laplacian signs
+ * in a bitset where each row starts on a new word, so that distinct rows can be
+ * written concurrently. The buffers are allocated once and reused by smaller
+ * octaves.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class HessianLayer {
+
+	private int sx, sy, rowWords;
+	private double[] responses;
+	private long[] laplacianSigns;
+
+	/**
+	 * Constructor allocating a layer of the given size.
+	 * 
+	 * @param width
+	 *          Width of the layer.
+	 * @param height
+	 *          Height of the layer.
+	 */
+	public HessianLayer(int width, int height) {
+		responses = new double[0];
+		laplacianSigns = new long[0];
+		resize(width, height);
+	}
+
+	/**
+	 * Changes the size of the layer. The buffers are only reallocated when they
+	 * are too small for the new size. Values are not preserved.
+	 * 
+	 * @param width
+	 *          New width of the layer.
+	 * @param height
+	 *          New height of the layer.
+	 */
+	public void resize(int width, int height) {
+		sx = width;
+		sy = height;
+		rowWords = (width + 63) >>> 6;
+		if (responses.length < width * height) {
+			responses = new double[width * height];
+		}
+		if (laplacianSigns.length < rowWords * height) {
+			laplacianSigns = new long[rowWords * height];
+		}
+	}
+
+	/**
+	 * Subsamples the layer in place, keeping one pixel out of factor in each
+	 * direction. The result is the layer that would be computed with the same
+	 * filter at a sampling step factor times larger.
+	 * 
+	 * @param factor
+	 *          The subsampling factor.
+	 */
+	public void subsample(int factor) {
+		int width = sx / factor;
+		int height = sy / factor;
+		int words = (width + 63) >>> 6;
+
+		// Values are written before the ones they are read from, so the layer can
+		// be compacted in place.
+		for (int y = 0; y < height; y++) {
+			int src = y * factor * sx;
+			int dst = y * width;
+			for (int x = 0; x < width; x++) {
+				responses[dst + x] = responses[src + x * factor];
+			}
+		}
+		for (int y = 0; y < height; y++) {
+			for (int k = 0; k < words; k++) {
+				long word = 0;
+				int n = Math.min(64, width - k * 64);
+				for (int b = 0; b < n; b++) {
+					if (isLaplacianPositive((k * 64 + b) * factor, y * factor)) {
+						word |= 1L << b;
+					}
+				}
+				laplacianSigns[y * words + k] = word;
+			}
+		}
+
+		sx = width;
+		sy = height;
+		rowWords = words;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return Hessian response at (x, y).
+	 */
+	public double getResponse(int x, int y) {
+		return responses[x + y * sx];
+	}
+
+	/**
+	 * Sets the Hessian response at (x, y).
+	 * 
+	 * @param x
+	 * @param y
+	 * @param value
+	 */
+	public void setResponse(int x, int y, double value) {
+		responses[x + y * sx] = value;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return True if the Laplacian at (x, y) is positive.
+	 */
+	public boolean isLaplacianPositive(int x, int y) {
+		return (laplacianSigns[(x >>> 6) + y * rowWords] & (1L << x)) != 0;
+	}
+
+	/**
+	 * Sets the sign of the Laplacian at (x, y).
+	 * 
+	 * @param x
+	 * @param y
+	 * @param positive
+	 *          True if the Laplacian is positive.
+	 */
+	public void setLaplacianPositive(int x, int y, boolean positive) {
+		int i = (x >>> 6) + y * rowWords;
+		if (positive) {
+			laplacianSigns[i] |= (1L << x);
+		} else {
+			laplacianSigns[i] &= ~(1L << x);
+		}
+	}
+
+	/**
+	 * Sets the signs of the Laplacian of a whole row, one word at a time.
+	 * 
+	 * @param y
+	 *          The row to set.
+	 * @param traces
+	 *          The Laplacian of each pixel of the row.
+	 */
+	void setLaplacianRow(int y, double[] traces) {
+		int i = y * rowWords;
+		for (int x0 = 0; x0 < sx; x0 += 64, i++) {
+			long word = 0;
+			int n = Math.min(64, sx - x0);
+			for (int b = 0; b < n; b++) {
+				if (traces[x0 + b] > 0) {
+					word |= 1L << b;
+				}
+			}
+			laplacianSigns[i] = word;
+		}
+	}
+
+	/**
+	 * @return Width of the layer.
+	 */
+	public int getWidth() {
+		return sx;
+	}
+
+	/**
+	 * @return Height of the layer.
+	 */
+	public int getHeight() {
+		return sy;
+	}
+
+	/**
+	 * @return Internal response buffer, row-major with a stride equal to the
+	 *         width. It can be larger than the layer.
+	 */
+	double[] getResponses() {
+		return responses;
+	}
+}
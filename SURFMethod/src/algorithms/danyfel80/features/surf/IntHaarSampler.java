@@ -0,0 +1,36 @@
+package algorithms.danyfel80.features.surf;
+
+/**
+ * Haar sampler reading an {@link IntIntegralImage} directly.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class IntHaarSampler extends HaarSampler {
+
+	private final int[] data;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param integral
+	 *          The integral image to sample.
+	 */
+	public IntHaarSampler(IntIntegralImage integral) {
+		super(integral);
+		this.data = integral.getData();
+	}
+
+	@Override
+	public void evaluate() {
+		final int[] data = this.data;
+		final int[] o = offsets;
+		for (int k = 0; k < count; k++) {
+			int i = (xs[k] + padding) + (ys[k] + padding) * stride;
+			// Each box sum fits in an int even if the corners difference overflows.
+			responsesX[k] = -((long) (data[i + o[0]] + data[i + o[1]] - data[i + o[2]] - data[i + o[3]])
+			    + (data[i + o[4]] + data[i + o[5]] - data[i + o[6]] - data[i + o[7]]));
+			responsesY[k] = -((long) (data[i + o[8]] + data[i + o[9]] - data[i + o[10]] - data[i + o[11]])
+			    + (data[i + o[12]] + data[i + o[13]] - data[i + o[14]] - data[i + o[15]]));
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package algorithms.danyfel80.features.surf;
+
+/**
+ * Hessian kernel reading a {@link IntIntegralImage} directly. The corner
+ * offsets of the eight boxes are computed once per row, so that the loop over
+ * the row only performs loads at a constant stride and integer arithmetic that
+ * the JIT can vectorize.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class IntHessianKernel implements HessianKernel {
+
+	private final int[] data;
+	private final int stride, padding;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param integral
+	 *          The integral image to filter.
+	 */
+	public IntHessianKernel(IntIntegralImage integral) {
+		this.data = integral.getData();
+		this.stride = integral.getWidth();
+		this.padding = integral.getPadding();
+	}
+
+	@Override
+	public void computeRow(HessianLayer layer, int y, int x0, int x1, int sample, int l, double[] traces) {
+		final int[] data = this.data;
+		final double[] responses = layer.getResponses();
+		final int w = layer.getWidth();
+		final int row = y * w;
+		// Index of the first pixel of the row in the integral image
+		final int origin = padding + (y * sample + padding) * stride;
+
+		final int[] o = HessianKernel.filterOffsets(l, stride);
+		final int xxB0 = origin + o[0], xxB1 = origin + o[1], xxB2 = origin + o[2], xxB3 = origin + o[3];
+		final int xxS0 = origin + o[4], xxS1 = origin + o[5], xxS2 = origin + o[6], xxS3 = origin + o[7];
+		final int yyB0 = origin + o[8], yyB1 = origin + o[9], yyB2 = origin + o[10], yyB3 = origin + o[11];
+		final int yyS0 = origin + o[12], yyS1 = origin + o[13], yyS2 = origin + o[14], yyS3 = origin + o[15];
+		final int xyA0 = origin + o[16], xyA1 = origin + o[17], xyA2 = origin + o[18], xyA3 = origin + o[19];
+		final int xyB0 = origin + o[20], xyB1 = origin + o[21], xyB2 = origin + o[22], xyB3 = origin + o[23];
+		final int xyC0 = origin + o[24], xyC1 = origin + o[25], xyC2 = origin + o[26], xyC3 = origin + o[27];
+		final int xyD0 = origin + o[28], xyD1 = origin + o[29], xyD2 = origin + o[30], xyD3 = origin + o[31];
+
+		final double nxx = Math.sqrt(6 * l * (2 * l - 1));// Frobenius norm of the
+		                                                  // xx and yy filters
+		final double nxy = Math.sqrt(4 * l * l);// Frobenius of the xy filter.
+
+		for (int x = x0, i = x0 * sample; x < x1; x++, i += sample) {
+			// Second order filters, exact integer sums. Each box sum fits in an int
+			// even if the corners difference overflows.
+			long sxx = (long) (data[i + xxB0] + data[i + xxB1] - data[i + xxB2] - data[i + xxB3])
+			    - 3L * (data[i + xxS0] + data[i + xxS1] - data[i + xxS2] - data[i + xxS3]);
+			long syy = (long) (data[i + yyB0] + data[i + yyB1] - data[i + yyB2] - data[i + yyB3])
+			    - 3L * (data[i + yyS0] + data[i + yyS1] - data[i + yyS2] - data[i + yyS3]);
+			long sxy = (long) (data[i + xyA0] + data[i + xyA1] - data[i + xyA2] - data[i + xyA3])
+			    + (data[i + xyB0] + data[i + xyB1] - data[i + xyB2] - data[i + xyB3])
+			    + (data[i + xyC0] + data[i + xyC1] - data[i + xyC2] - data[i + xyC3])
+			    + (data[i + xyD0] + data[i + xyD1] - data[i + xyD2] - data[i + xyD3]);
+
+			double Dxx = sxx / nxx;
+			double Dyy = syy / nxx;
+			double Dxy = sxy / nxy;
+
+			// Computation of the Hessian and Laplacian
+			responses[row + x] = Dxx * Dyy - 0.8317 * Dxy * Dxy;
+			traces[x] = Dxx + Dyy;
+		}
+	}
+}
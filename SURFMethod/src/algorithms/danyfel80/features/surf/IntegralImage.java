@@ -0,0 +1,103 @@
+package algorithms.danyfel80.features.surf;
+
+/**
+ * Integral image of a normalized image, padded by mirroring the image on its
+ * borders to avoid border effects. Coordinates are given in the unpadded image
+ * and can range in [-padding, size + padding).
+ * 
+ * @see IntegralImageBuilder
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public interface IntegralImage {
+
+	/**
+	 * Maximum value of a normalized pixel.
+	 */
+	public static final int MAX_VALUE = 255;
+
+	/**
+	 * Getter
+	 * 
+	 * @param x
+	 * @param y
+	 * @return value at (x, y) of integral image.
+	 */
+	long getValue(int x, int y);
+
+	/**
+	 * @return Size x of the padded image.
+	 */
+	int getWidth();
+
+	/**
+	 * @return Size y of the padded image.
+	 */
+	int getHeight();
+
+	/**
+	 * @return Padding on each side of the image.
+	 */
+	int getPadding();
+
+	/**
+	 * Sum of the image over a box.
+	 * 
+	 * @param xa
+	 *          Left of the box (inclusive).
+	 * @param ya
+	 *          Top of the box (inclusive).
+	 * @param xb
+	 *          Right of the box (exclusive).
+	 * @param yb
+	 *          Bottom of the box (exclusive).
+	 * @return The sum of the box.
+	 */
+	long boxSum(int xa, int ya, int xb, int yb);
+
+	/**
+	 * Convolution by a square defined by the bottom-left (a,b) and top-right
+	 * (c,d)
+	 * 
+	 * @param a
+	 *          Left
+	 * @param b
+	 *          Bottom
+	 * @param c
+	 *          Right
+	 * @param d
+	 *          Top
+	 * @param x
+	 *          X center
+	 * @param y
+	 *          Y center
+	 * @return computed value
+	 */
+	double squareConvolutionXY(int a, int b, int c, int d, int x, int y);
+
+	/**
+	 * Convolution by a box [-1,+1]
+	 * 
+	 * @param x
+	 *          X center
+	 * @param y
+	 *          Y center
+	 * @param lambda
+	 *          Lambda value
+	 * @return
+	 */
+	long haarX(int x, int y, int lambda);
+
+	/**
+	 * Convolution by a box [-1;+1]
+	 * 
+	 * @param x
+	 *          X center
+	 * @param y
+	 *          Y center
+	 * @param lambda
+	 *          Lambda value
+	 * @return
+	 */
+	long haarY(int x, int y, int lambda);
+}
@@ -0,0 +1,438 @@
+package algorithms.danyfel80.features.surf;
+
+import java.awt.Rectangle;
+import java.util.concurrent.ForkJoinPool;
+
+import icy.sequence.Sequence;
+
+/**
+ * Builds the integral image of a sequence in a single preprocessing stage. The
+ * channels of the sequence are read in their native data type (see
+ * {@link PixelReader}), averaged to a gray level, linearly normalized
+ * to [0, 255], clamped to it when a given range does not hold all the read
+ * values, and truncated to integers while integrating, without
+ * intermediate images. The image is mirrored on its borders (see
+ * {@link #getMirrorIndices(int, int, int)}) when the padding
+ * falls outside of it. The rows are first prefix-summed in parallel bands,
+ * then the columns are accumulated in parallel strips.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class IntegralImageBuilder {
+
+	/**
+	 * Amount of rows processed by a single task.
+	 */
+	private static final int BAND_HEIGHT = 32;
+	/**
+	 * Amount of columns accumulated by a single task.
+	 */
+	private static final int STRIP_WIDTH = 256;
+
+	private Sequence sequence;
+	private Rectangle region;
+	private double[] range;
+	private int padding;
+	private ForkJoinPool pool;
+
+	/**
+	 * Constructor preparing the integration of the whole sequence with the
+	 * padding needed by the detection ({@link SURFMethodUtils#getPadding()}).
+	 * 
+	 * @param sequence
+	 *          2D sequence to integrate.
+	 */
+	public IntegralImageBuilder(Sequence sequence) {
+		this.sequence = sequence;
+		this.region = new Rectangle(0, 0, sequence.getWidth(), sequence.getHeight());
+		this.padding = SURFMethodUtils.getPadding();
+		this.pool = null;
+	}
+
+	/**
+	 * Restricts the integration to a region of the sequence. The padding around
+	 * the region is read from the sequence where available.
+	 * 
+	 * @param region
+	 *          Region of the sequence. Coordinates of the integral image are
+	 *          relative to its origin.
+	 */
+	public void setRegion(Rectangle region) {
+		this.region = new Rectangle(region);
+	}
+
+	/**
+	 * @return The integrated region of the sequence.
+	 */
+	public Rectangle getRegion() {
+		return new Rectangle(region);
+	}
+
+	/**
+	 * Sets the values mapped to 0 and 255 by the normalization. By default the
+	 * range of the region is used.
+	 * 
+	 * @param min
+	 *          Value mapped to 0.
+	 * @param max
+	 *          Value mapped to 255.
+	 */
+	public void setRange(double min, double max) {
+		this.range = new double[] { min, max };
+	}
+
+	/**
+	 * Sets the padding added on each side of the region.
+	 * 
+	 * @param padding
+	 *          Padding in pixels.
+	 */
+	public void setPadding(int padding) {
+		this.padding = padding;
+	}
+
+	/**
+	 * Sets the pool used to process bands of rows and strips of columns.
+	 * 
+	 * @param pool
+	 *          The pool to use, or null to build the image on the calling
+	 *          thread.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Computes the minimum and maximum gray levels of the region.
+	 * 
+	 * @return The minimum and maximum values of the region.
+	 */
+	public double[] computeRange() {
+		final PixelReader[] channels = getChannels();
+		final int bands = (region.height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+		final double[] mins = new double[bands];
+		final double[] maxs = new double[bands];
+
+		SURFMethodUtils.parallelFor(pool, 0, bands, 1, (start, end) -> {
+			double[] row = new double[region.width];
+			for (int band = start; band < end; band++) {
+				double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+				int yEnd = Math.min(region.height, (band + 1) * BAND_HEIGHT);
+				for (int y = band * BAND_HEIGHT; y < yEnd; y++) {
+					readGrayRow(channels, region.y + y, region.x, region.x + region.width, row);
+					for (int x = 0; x < region.width; x++) {
+						min = (row[x] < min) ? row[x] : min;
+						max = (row[x] > max) ? row[x] : max;
+					}
+				}
+				mins[band] = min;
+				maxs[band] = max;
+			}
+		});
+
+		double min = mins[0], max = maxs[0];
+		for (int band = 1; band < bands; band++) {
+			min = (mins[band] < min) ? mins[band] : min;
+			max = (maxs[band] > max) ? maxs[band] : max;
+		}
+		return new double[] { min, max };
+	}
+
+	/**
+	 * Computes the integral image. It is stored in an int array when the sum of
+	 * the padded region cannot overflow it, and in a long array otherwise.
+	 * 
+	 * @return The integral image of the padded region.
+	 */
+	public IntegralImage build() {
+		final PaddedRows rows = new PaddedRows();
+		if ((long) IntegralImage.MAX_VALUE * rows.sx * rows.sy <= Integer.MAX_VALUE) {
+			final IntIntegralImage integral = new IntIntegralImage(rows.sx, rows.sy, padding);
+			final int[] data = integral.getData();
+			forEachRow(rows, (y, values) -> prefixSum(values, data, y * rows.sx));
+			accumulateColumns(data, rows.sx, rows.sy);
+			return integral;
+		} else {
+			final LongIntegralImage integral = new LongIntegralImage(rows.sx, rows.sy, padding);
+			final long[] data = integral.getData();
+			forEachRow(rows, (y, values) -> prefixSum(values, data, y * rows.sx));
+			accumulateColumns(data, rows.sx, rows.sy);
+			return integral;
+		}
+	}
+
+	/**
+	 * Computes the integral image of the squared normalized values, with the
+	 * same region, padding and normalization as {@link #build()}. Together with
+	 * the integral image it gives the variance of the image over any box (see
+	 * {@link ContrastMask}).
+	 * 
+	 * @return The integral image of the squared values of the padded region.
+	 */
+	public LongIntegralImage buildSquared() {
+		final PaddedRows rows = new PaddedRows();
+		final LongIntegralImage integral = new LongIntegralImage(rows.sx, rows.sy, padding);
+		final long[] data = integral.getData();
+		forEachRow(rows, (y, values) -> {
+			for (int x = 0; x < values.length; x++) {
+				values[x] *= values[x];
+			}
+			prefixSum(values, data, y * rows.sx);
+		});
+		accumulateColumns(data, rows.sx, rows.sy);
+		return integral;
+	}
+
+	/**
+	 * Layout of the padded region in the sequence, shared by the integral
+	 * images: the row and column of the sequence read by each padded pixel, and
+	 * the normalization of the values.
+	 */
+	private final class PaddedRows {
+		final PixelReader[] channels;
+		final double[] range;
+		final int[] mirrorX, mirrorY;
+		/**
+		 * Size of the padded region.
+		 */
+		final int sx, sy;
+		/**
+		 * Columns of the sequence read by the padded rows, [xStart, xEnd).
+		 */
+		final int xStart, xEnd;
+
+		PaddedRows() {
+			range = (IntegralImageBuilder.this.range != null) ? IntegralImageBuilder.this.range : computeRange();
+			channels = getChannels();
+			mirrorX = getMirrorIndices(sequence.getWidth(), region.x - padding, region.width + 2 * padding);
+			mirrorY = getMirrorIndices(sequence.getHeight(), region.y - padding, region.height + 2 * padding);
+			sx = mirrorX.length;
+			sy = mirrorY.length;
+			int minX = mirrorX[0], maxX = mirrorX[0];
+			for (int x : mirrorX) {
+				minX = Math.min(minX, x);
+				maxX = Math.max(maxX, x);
+			}
+			xStart = minX;
+			xEnd = maxX + 1;
+		}
+	}
+
+	/**
+	 * Task processing a row of the padded region.
+	 */
+	private interface RowTask {
+		/**
+		 * @param y
+		 *          The padded row.
+		 * @param values
+		 *          The normalized values of the row.
+		 */
+		void process(int y, int[] values);
+	}
+
+	/**
+	 * Reads the normalized values of each padded row, in parallel bands.
+	 * 
+	 * @param rows
+	 *          Layout of the padded region.
+	 * @param task
+	 *          The task processing each row.
+	 */
+	private void forEachRow(PaddedRows rows, RowTask task) {
+		SURFMethodUtils.parallelFor(pool, 0, (rows.sy + BAND_HEIGHT - 1) / BAND_HEIGHT, 1, (start, end) -> {
+			double[] row = new double[rows.xEnd - rows.xStart];
+			int[] values = new int[rows.sx];
+			for (int y = start * BAND_HEIGHT; y < Math.min(rows.sy, end * BAND_HEIGHT); y++) {
+				readNormalizedRow(rows.channels, rows.mirrorY[y], rows.mirrorX, rows.xStart, rows.xEnd, rows.range, row,
+				    values);
+				task.process(y, values);
+			}
+		});
+	}
+
+	/**
+	 * Stores the prefix sums of a row in an int integral image.
+	 * 
+	 * @param values
+	 *          The values of the row.
+	 * @param data
+	 *          The integral image.
+	 * @param offset
+	 *          Index of the first pixel of the row in the image.
+	 */
+	private static void prefixSum(int[] values, int[] data, int offset) {
+		int h = 0;
+		for (int x = 0, i = offset; x < values.length; x++, i++) {
+			h += values[x];
+			data[i] = h;
+		}
+	}
+
+	/**
+	 * Stores the prefix sums of a row in a long integral image.
+	 * 
+	 * @param values
+	 *          The values of the row.
+	 * @param data
+	 *          The integral image.
+	 * @param offset
+	 *          Index of the first pixel of the row in the image.
+	 */
+	private static void prefixSum(int[] values, long[] data, int offset) {
+		long h = 0;
+		for (int x = 0, i = offset; x < values.length; x++, i++) {
+			h += values[x];
+			data[i] = h;
+		}
+	}
+
+	/**
+	 * Accumulates the rows prefix sums of an int integral image along the
+	 * columns, in parallel strips.
+	 * 
+	 * @param data
+	 *          The rows prefix sums, replaced by the integral image.
+	 * @param sx
+	 *          Width of the image.
+	 * @param sy
+	 *          Height of the image.
+	 */
+	private void accumulateColumns(int[] data, int sx, int sy) {
+		SURFMethodUtils.parallelFor(pool, 0, (sx + STRIP_WIDTH - 1) / STRIP_WIDTH, 1, (start, end) -> {
+			int stripEnd = Math.min(sx, end * STRIP_WIDTH);
+			for (int y = 1; y < sy; y++) {
+				for (int i = y * sx + start * STRIP_WIDTH, iEnd = y * sx + stripEnd; i < iEnd; i++) {
+					data[i] += data[i - sx];
+				}
+			}
+		});
+	}
+
+	/**
+	 * Accumulates the rows prefix sums of a long integral image along the
+	 * columns, in parallel strips.
+	 * 
+	 * @param data
+	 *          The rows prefix sums, replaced by the integral image.
+	 * @param sx
+	 *          Width of the image.
+	 * @param sy
+	 *          Height of the image.
+	 */
+	private void accumulateColumns(long[] data, int sx, int sy) {
+		SURFMethodUtils.parallelFor(pool, 0, (sx + STRIP_WIDTH - 1) / STRIP_WIDTH, 1, (start, end) -> {
+			int stripEnd = Math.min(sx, end * STRIP_WIDTH);
+			for (int y = 1; y < sy; y++) {
+				for (int i = y * sx + start * STRIP_WIDTH, iEnd = y * sx + stripEnd; i < iEnd; i++) {
+					data[i] += data[i - sx];
+				}
+			}
+		});
+	}
+
+	/**
+	 * Computes the index of the source pixel of each pixel in [start, start +
+	 * length) along one dimension when the image is mirrored on its borders.
+	 * 
+	 * @param size
+	 *          Size of the image along the dimension.
+	 * @param start
+	 *          First pixel, can be negative.
+	 * @param length
+	 *          Amount of pixels.
+	 * @return Source index of each pixel.
+	 */
+	private static int[] getMirrorIndices(int size, int start, int length) {
+		int[] indices = new int[length];
+		int i;
+		for (int o = start; o < start + length; o++) {
+			i = o;
+
+			if (i < 0) {
+				i = -i;
+			}
+
+			i %= 2 * size;
+
+			if (i >= size) {
+				i = 2 * size - i - 1;
+			}
+
+			indices[o - start] = i;
+		}
+		return indices;
+	}
+
+	/**
+	 * @return The readers of each channel of the sequence.
+	 */
+	private PixelReader[] getChannels() {
+		PixelReader[] channels = new PixelReader[sequence.getSizeC()];
+		for (int c = 0; c < channels.length; c++) {
+			channels[c] = PixelReader.create(sequence, c);
+		}
+		return channels;
+	}
+
+	/**
+	 * Reads the columns [xStart, xEnd) of a row of the sequence as gray levels,
+	 * the mean of the channels.
+	 * 
+	 * @param channels
+	 *          Reader of each channel.
+	 * @param y
+	 *          The row to read.
+	 * @param xStart
+	 *          First column to read (inclusive).
+	 * @param xEnd
+	 *          Last column to read (exclusive).
+	 * @param row
+	 *          The gray levels of the row, starting at xStart.
+	 */
+	private void readGrayRow(PixelReader[] channels, int y, int xStart, int xEnd, double[] row) {
+		int offset = y * sequence.getWidth() + xStart;
+		int length = xEnd - xStart;
+		channels[0].read(offset, length, row);
+		if (channels.length > 1) {
+			for (int c = 1; c < channels.length; c++) {
+				channels[c].add(offset, length, row);
+			}
+			for (int x = 0; x < length; x++) {
+				row[x] /= channels.length;
+			}
+		}
+	}
+
+	/**
+	 * Reads a padded row of normalized values, clamped to [0, 255] and truncated
+	 * to integers.
+	 * 
+	 * @param channels
+	 *          Reader of each channel.
+	 * @param y
+	 *          The row of the sequence to read.
+	 * @param mirrorX
+	 *          Column of the sequence of each padded pixel.
+	 * @param xStart
+	 *          First column of the sequence read by the padded row.
+	 * @param xEnd
+	 *          Last column (exclusive) of the sequence read by the padded row.
+	 * @param range
+	 *          Values mapped to 0 and 255.
+	 * @param row
+	 *          Buffer for the gray levels of the row.
+	 * @param values
+	 *          The normalized values of the padded row.
+	 */
+	private void readNormalizedRow(PixelReader[] channels, int y, int[] mirrorX, int xStart, int xEnd, double[] range,
+	    double[] row, int[] values) {
+		readGrayRow(channels, y, xStart, xEnd, row);
+		double min = range[0], max = range[1];
+		for (int x = 0; x < values.length; x++) {
+			double value = 255.0 * ((row[mirrorX[x] - xStart] - min) / (max - min));
+			// Keeps the sums in the bounds of the storage
+			values[x] = (int) Math.max(0.0, Math.min(IntegralImage.MAX_VALUE, value));
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Randomized kd-tree forest over a matrix of descriptors, used to search
+ * approximate nearest neighbours. Each tree splits its nodes on a dimension
+ * drawn among the ones of highest variance, at the mean of the node. A search
+ * descends every tree, then explores the closest pending branches of all the
+ * trees until a maximum amount of descriptors have been compared.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class KdForest {
+
+	/**
+	 * Maximum amount of descriptors in a leaf.
+	 */
+	private static final int LEAF_SIZE = 4;
+	/**
+	 * Amount of descriptors of a node used to estimate the mean and variance of
+	 * each dimension. The descriptors are shuffled in each tree, so the sample
+	 * is random.
+	 */
+	private static final int SAMPLE_SIZE = 100;
+	/**
+	 * Amount of dimensions of highest variance among which the split dimension
+	 * is drawn.
+	 */
+	private static final int RANDOM_DIMENSIONS = 5;
+	/**
+	 * Seed of the random generators of the trees, so that searches are
+	 * reproducible.
+	 */
+	private static final long SEED = 0x5EED;
+
+	private static final int D = FeatureSet.DESCRIPTOR_LENGTH;
+
+	private final float[] matrix;
+	private final int size;
+	private final int[] roots;
+
+	// Nodes of all the trees. Internal nodes have a dimension and children,
+	// leaves have a dimension of -1 and the range [left, right) of the order.
+	private final int[] dimensions, left, right;
+	private final float[] values;
+	private final int[] order;
+
+	/**
+	 * Builds the forest of a descriptor matrix.
+	 * 
+	 * @param matrix
+	 *          Descriptors to index, {@link FeatureSet#DESCRIPTOR_LENGTH} values
+	 *          per row.
+	 * @param size
+	 *          Amount of descriptors.
+	 * @param trees
+	 *          Amount of trees.
+	 * @param pool
+	 *          The pool used to build the trees, or null to build them on the
+	 *          calling thread.
+	 */
+	public KdForest(float[] matrix, int size, int trees, ForkJoinPool pool) {
+		this.matrix = matrix;
+		this.size = size;
+		this.roots = new int[trees];
+
+		// Leaves hold at least one descriptor, so a tree has less than 2 * size
+		// nodes.
+		int nodesPerTree = Math.max(1, 2 * size);
+		dimensions = new int[trees * nodesPerTree];
+		left = new int[trees * nodesPerTree];
+		right = new int[trees * nodesPerTree];
+		values = new float[trees * nodesPerTree];
+		order = new int[trees * size];
+
+		SURFMethodUtils.parallelFor(pool, 0, trees, 1, (start, end) -> {
+			for (int t = start; t < end; t++) {
+				// Each tree orders the descriptors at random, so that the samples of
+				// its nodes differ from the other trees.
+				Random random = new Random(SEED + t);
+				for (int i = 0; i < size; i++) {
+					int j = random.nextInt(i + 1);
+					order[t * size + i] = order[t * size + j];
+					order[t * size + j] = i;
+				}
+				int[] next = new int[] { t * nodesPerTree };
+				roots[t] = build(random, t * size, (t + 1) * size, next);
+			}
+		});
+	}
+
+	/**
+	 * @return Amount of indexed descriptors.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Builds the node of a range of the order.
+	 * 
+	 * @param random
+	 *          Random generator of the tree.
+	 * @param start
+	 *          First position of the range (inclusive).
+	 * @param end
+	 *          Last position of the range (exclusive).
+	 * @param next
+	 *          Next free node of the tree.
+	 * @return The node.
+	 */
+	private int build(Random random, int start, int end, int[] next) {
+		int node = next[0]++;
+		if (end - start <= LEAF_SIZE) {
+			dimensions[node] = -1;
+			left[node] = start;
+			right[node] = end;
+			return node;
+		}
+
+		// Mean and variance of a sample of the node
+		double[] mean = new double[D];
+		double[] variance = new double[D];
+		int samples = Math.min(SAMPLE_SIZE, end - start);
+		for (int i = start; i < start + samples; i++) {
+			for (int k = 0, j = order[i] * D; k < D; k++, j++) {
+				mean[k] += matrix[j];
+			}
+		}
+		for (int k = 0; k < D; k++) {
+			mean[k] /= samples;
+		}
+		for (int i = start; i < start + samples; i++) {
+			for (int k = 0, j = order[i] * D; k < D; k++, j++) {
+				double e = matrix[j] - mean[k];
+				variance[k] += e * e;
+			}
+		}
+
+		// Random dimension among the ones of highest variance
+		int[] top = new int[RANDOM_DIMENSIONS];
+		Arrays.fill(top, -1);
+		for (int k = 0; k < D; k++) {
+			for (int r = 0; r < RANDOM_DIMENSIONS; r++) {
+				if (top[r] < 0 || variance[k] > variance[top[r]]) {
+					System.arraycopy(top, r, top, r + 1, RANDOM_DIMENSIONS - r - 1);
+					top[r] = k;
+					break;
+				}
+			}
+		}
+		int dimension = top[random.nextInt(RANDOM_DIMENSIONS)];
+		float value = (float) mean[dimension];
+
+		// Partition of the range
+		int middle = start;
+		for (int i = start; i < end; i++) {
+			if (matrix[order[i] * D + dimension] < value) {
+				int swap = order[i];
+				order[i] = order[middle];
+				order[middle++] = swap;
+			}
+		}
+		if (middle == start || middle == end) {
+			middle = (start + end) / 2;
+		}
+
+		dimensions[node] = dimension;
+		values[node] = value;
+		left[node] = build(random, start, middle, next);
+		right[node] = build(random, middle, end, next);
+		return node;
+	}
+
+	/**
+	 * Creates a searcher of the forest. Searchers hold buffers and must not be
+	 * shared between threads.
+	 * 
+	 * @param k
+	 *          Amount of neighbours searched.
+	 * @return The searcher.
+	 */
+	public Searcher createSearcher(int k) {
+		return new Searcher(k);
+	}
+
+	/**
+	 * Approximate search of the k nearest descriptors of a query.
+	 */
+	public class Searcher {
+
+		private int[] visited;
+		private int stamp;
+
+		// Pending branches, as a binary min-heap on their distance.
+		private float[] heapDistances;
+		private int[] heapNodes;
+		private int heapSize;
+
+		// Result of the last search, sorted by increasing distance
+		private final int k;
+		private final int[] neighbours;
+		private final float[] distances;
+		private int checks;
+
+		private Searcher(int k) {
+			visited = new int[size];
+			heapDistances = new float[64];
+			heapNodes = new int[64];
+			this.k = k;
+			neighbours = new int[k];
+			distances = new float[k];
+		}
+
+		/**
+		 * Searches the k nearest descriptors of a query.
+		 * 
+		 * @param query
+		 *          Matrix holding the query.
+		 * @param offset
+		 *          Offset of the query in its matrix.
+		 * @param maxChecks
+		 *          Amount of descriptors compared before the search stops.
+		 */
+		public void search(float[] query, int offset, int maxChecks) {
+			Arrays.fill(neighbours, -1);
+			Arrays.fill(distances, BruteForceMatcher.MAX_DISTANCE);
+			checks = 0;
+			heapSize = 0;
+			if (++stamp == 0) {
+				Arrays.fill(visited, 0);
+				stamp = 1;
+			}
+
+			for (int root : roots) {
+				descend(query, offset, root, 0f, maxChecks);
+			}
+			while (heapSize > 0 && checks < maxChecks) {
+				float distance = heapDistances[0];
+				int node = heapNodes[0];
+				pop();
+				descend(query, offset, node, distance, maxChecks);
+			}
+		}
+
+		/**
+		 * @param rank
+		 *          Rank of the neighbour, 0 for the nearest.
+		 * @return Index of the neighbour found, -1 if none.
+		 */
+		public int getNeighbour(int rank) {
+			return neighbours[rank];
+		}
+
+		/**
+		 * @param rank
+		 *          Rank of the neighbour, 0 for the nearest.
+		 * @return Distance to the neighbour found.
+		 */
+		public float getDistance(int rank) {
+			return distances[rank];
+		}
+
+		/**
+		 * Descends a branch down to a leaf, keeping the other branches for later,
+		 * and compares the query with the descriptors of the leaf.
+		 */
+		private void descend(float[] query, int offset, int node, float distance, int maxChecks) {
+			while (dimensions[node] >= 0) {
+				float diff = query[offset + dimensions[node]] - values[node];
+				int near = (diff < 0) ? left[node] : right[node];
+				int far = (diff < 0) ? right[node] : left[node];
+				push(distance + diff * diff, far);
+				node = near;
+			}
+			for (int i = left[node]; i < right[node]; i++) {
+				int p = order[i];
+				if (visited[p] == stamp) {
+					continue;
+				}
+				visited[p] = stamp;
+				checks++;
+				float d = BruteForceMatcher.distance(query, offset, matrix, p * D);
+				// We select the k closest descriptors
+				if (distances[k - 1] > d) {
+					BruteForceMatcher.insert(neighbours, distances, 0, k, p, d);
+				}
+			}
+		}
+
+		private void push(float distance, int node) {
+			if (heapSize == heapNodes.length) {
+				heapDistances = Arrays.copyOf(heapDistances, 2 * heapSize);
+				heapNodes = Arrays.copyOf(heapNodes, 2 * heapSize);
+			}
+			int i = heapSize++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (heapDistances[parent] <= distance) {
+					break;
+				}
+				heapDistances[i] = heapDistances[parent];
+				heapNodes[i] = heapNodes[parent];
+				i = parent;
+			}
+			heapDistances[i] = distance;
+			heapNodes[i] = node;
+		}
+
+		private void pop() {
+			float distance = heapDistances[--heapSize];
+			int node = heapNodes[heapSize];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= heapSize) {
+					break;
+				}
+				if (child + 1 < heapSize && heapDistances[child + 1] < heapDistances[child]) {
+					child++;
+				}
+				if (heapDistances[child] >= distance) {
+					break;
+				}
+				heapDistances[i] = heapDistances[child];
+				heapNodes[i] = heapNodes[child];
+				i = child;
+			}
+			heapDistances[i] = distance;
+			heapNodes[i] = node;
+		}
+	}
+}
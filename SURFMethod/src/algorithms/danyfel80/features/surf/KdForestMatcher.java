@@ -0,0 +1,124 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Approximate nearest neighbours search between the descriptors of two feature
+ * sets, backed by a randomized kd-tree forest ({@link KdForest}) built once
+ * over the targets. As with {@link BruteForceMatcher}, only features with the
+ * same sign of the Laplacian are compared, so one forest is built for each
+ * sign. The accuracy is traded against the speed with the amount of trees and
+ * the maximum amount of descriptors compared for each query.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class KdForestMatcher {
+
+	/**
+	 * Default amount of trees.
+	 */
+	public static final int DEFAULT_TREES = 4;
+	/**
+	 * Default amount of descriptors compared for each query.
+	 */
+	public static final int DEFAULT_CHECKS = 128;
+
+	private FeatureSet targets;
+	private int checks;
+	private ForkJoinPool pool;
+
+	// Index of each sign: false, then true
+	private int[][] targetIndices;
+	private KdForest[] forests;
+
+	/**
+	 * Constructor building the forests of the targets.
+	 * 
+	 * @param targets
+	 *          The features to search in.
+	 * @param trees
+	 *          Amount of trees of each forest.
+	 * @param checks
+	 *          Maximum amount of descriptors compared for each query.
+	 * @param pool
+	 *          The pool to use, or null to build and search on the calling
+	 *          thread.
+	 */
+	public KdForestMatcher(FeatureSet targets, int trees, int checks, ForkJoinPool pool) {
+		this.targets = targets;
+		this.checks = checks;
+		this.pool = pool;
+
+		targetIndices = new int[2][];
+		forests = new KdForest[2];
+		for (int s = 0; s < 2; s++) {
+			targetIndices[s] = BruteForceMatcher.getIndices(targets, s == 1);
+			forests[s] = new KdForest(BruteForceMatcher.pack(targets, targetIndices[s]), targetIndices[s].length, trees,
+			    pool);
+		}
+	}
+
+	/**
+	 * @return The features searched.
+	 */
+	public FeatureSet getTargets() {
+		return targets;
+	}
+
+	/**
+	 * Finds, for each query, approximations of the k nearest targets with the
+	 * same sign of the Laplacian, using the squared euclidean distance.
+	 * 
+	 * @param queries
+	 *          The features to match.
+	 * @param result
+	 *          The result receiving the neighbours of each query.
+	 */
+	public void findNeighbours(FeatureSet queries, MatchResult result) {
+		float[] matrix = queries.getDescriptors();
+		int k = result.getK();
+		SURFMethodUtils.parallelFor(pool, 0, queries.size(), SURFMethodUtils.KEY_POINT_CHUNK, (start, end) -> {
+			KdForest.Searcher[] searchers = new KdForest.Searcher[] { forests[0].createSearcher(k),
+			    forests[1].createSearcher(k) };
+			for (int q = start; q < end; q++) {
+				int s = queries.isSignLaplacian(q) ? 1 : 0;
+				KdForest.Searcher searcher = searchers[s];
+				searcher.search(matrix, q * FeatureSet.DESCRIPTOR_LENGTH, checks);
+				for (int r = 0; r < k; r++) {
+					int neighbour = searcher.getNeighbour(r);
+					result.setNeighbour(q, r, (neighbour >= 0) ? targetIndices[s][neighbour] : -1, searcher.getDistance(r));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Measures the recall of the search: the fraction of the queries having a
+	 * target whose approximate nearest target is the exact one, as found by
+	 * {@link BruteForceMatcher}.
+	 * 
+	 * @param queries
+	 *          The features to match.
+	 * @return The recall in [0, 1].
+	 */
+	public double measureRecall(FeatureSet queries) {
+		int n = queries.size();
+		MatchResult exact = new MatchResult(n, 1);
+		MatchResult approximate = new MatchResult(n, 1);
+		new BruteForceMatcher(pool).findNeighbours(queries, targets, exact);
+		findNeighbours(queries, approximate);
+
+		int total = 0, found = 0;
+		for (int q = 0; q < n; q++) {
+			if (exact.getNeighbour(q, 0) >= 0) {
+				total++;
+				// Targets at the same distance are equally valid.
+				if (approximate.getNeighbour(q, 0) == exact.getNeighbour(q, 0)
+				    || approximate.getNeighbourDistance(q, 0) == exact.getNeighbourDistance(q, 0)) {
+					found++;
+				}
+			}
+		}
+		return (total > 0) ? (double) found / total : 1.0;
+	}
+}
@@ -1,6 +1,6 @@
 package algorithms.danyfel80.features.surf;
 
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.vecmath.Point3d;
 
@@ -10,6 +10,12 @@ import javax.vecmath.Point3d;
  * @author Daniel Felipe Gonzalez Obando
  */
 public class KeyPoint {
+	/**
+	 * Orientation estimator of each thread, holding its scratch buffers.
+	 */
+	private static final ThreadLocal<OrientationEstimator> ESTIMATORS = ThreadLocal
+	    .withInitial(() -> new OrientationEstimator(SURFMethodUtils.ANGULAR_REGIONS));
+
 	private double x;
 	private double y;
 	private double scale;
@@ -80,29 +86,31 @@ public class KeyPoint {
 	}
 
 	/**
-	 * Adds a key point to the feature list.
+	 * Computes the orientation of each key point of a feature set. Key points
+	 * are processed in chunks on the given pool.
 	 * 
 	 * @param intSeq
 	 *          Integral sequence.
-	 * @param i
-	 *          The x-coordinate of the key point.
-	 * @param j
-	 *          The y-coordinate of the key point.
-	 * @param sign
-	 *          The laplacian sign of the feature at the key point in the integral
-	 *          sequence.
-	 * @param scale
-	 *          The scale at which the key point was detected.
+	 * @param features
+	 *          The features whose key point orientation is computed.
+	 * @param pool
+	 *          The pool to use, or null to compute the orientations on the
+	 *          calling thread.
 	 */
-	public static void addKeyPoint(IntegralSequence intSeq, double i, double j, boolean sign, double scale,
-	    List<Descriptor> features) {
-		KeyPoint pt = new KeyPoint(i, j, scale,
-		    getOrientation(intSeq, (int) Math.round(i), (int) Math.round(j), SURFMethodUtils.ANGULAR_REGIONS, scale), sign);
-		features.add(new Descriptor(pt, null));
+	public static void setupOrientations(IntegralImage intSeq, FeatureSet features, ForkJoinPool pool) {
+		SURFMethodUtils.parallelFor(pool, 0, features.size(), SURFMethodUtils.KEY_POINT_CHUNK, (start, end) -> {
+			HaarSampler sampler = HaarSampler.create(intSeq);
+			OrientationEstimator estimator = ESTIMATORS.get();
+			for (int k = start; k < end; k++) {
+				features.setOrientation(k, estimator.getOrientation(sampler, (int) Math.round(features.getX(k)),
+				    (int) Math.round(features.getY(k)), features.getScale(k)));
+			}
+		});
 	}
 
 	/**
-	 * Computes the orientation of a given key point
+	 * Computes the orientation of a given key point with the estimator of the
+	 * calling thread.
 	 * 
 	 * @param intSeq
 	 *          The integral sequence.
@@ -116,69 +124,12 @@ public class KeyPoint {
 	 *          The scale at which the key point was found.
 	 * @return The orientation of the key point.
 	 */
-	public static double getOrientation(IntegralSequence intSeq, int x, int y, int sectors, double scale) {
-
-		double[] haarResponseX = new double[sectors];
-		double[] haarResponseY = new double[sectors];
-		double[] haarResponseSectorX = new double[sectors];
-		double[] haarResponseSectorY = new double[sectors];
-		long answerX, answerY;
-		double gauss;
-
-		int theta;
-
-		// Computation of the contribution of each angular sectors.
-		for (int i = -6; i <= 6; i++) {
-			for (int j = -6; j <= 6; j++) {
-				if (i * i + j * j <= 36) {
-
-					answerX = intSeq.haarX(x + (int) (i * scale), y + (int) (j * scale), (int) Math.round(2.0 * scale));
-					answerY = intSeq.haarY(x + (int) (i * scale), y + (int) (j * scale), (int) Math.round(2.0 * scale));
-
-					// Associated angle
-					theta = (int) (Math.atan2(answerY, answerX) * sectors / (2.0 * Math.PI));
-					theta = (theta >= 0) ? theta : (theta + sectors);
-
-					// Gaussian weight
-					gauss = SURFMethodUtils.gaussian(i, j, 2);
-
-					// Cumulative answers
-					haarResponseSectorX[theta] += answerX * gauss;
-					haarResponseSectorY[theta] += answerY * gauss;
-				}
-			}
+	public static double getOrientation(IntegralImage intSeq, int x, int y, int sectors, double scale) {
+		OrientationEstimator estimator = ESTIMATORS.get();
+		if (estimator.getSectors() != sectors) {
+			estimator = new OrientationEstimator(sectors);
 		}
-
-		// Compute a windowed answer
-		for (int i = 0; i < sectors; i++) {
-			for (int j = -sectors / 12; j <= sectors / 12; j++) {
-				if (0 <= i + j && i + j < sectors) {
-					haarResponseX[i] += haarResponseSectorX[i + j];
-					haarResponseY[i] += haarResponseSectorY[i + j];
-				}
-				// The answer can be on any cadrant of the unit circle
-				else if (i + j < 0) {
-					haarResponseX[i] += haarResponseSectorX[sectors + i + j];
-					haarResponseY[i] += haarResponseSectorY[i + j + sectors];
-				} else {
-					haarResponseX[i] += haarResponseSectorX[i + j - sectors];
-					haarResponseY[i] += haarResponseSectorY[i + j - sectors];
-				}
-			}
-		}
-
-		// Find out the maximum answer
-		double max = haarResponseX[0] * haarResponseX[0] + haarResponseY[0] * haarResponseY[0];
-
-		int t = 0;
-		for (int i = 1; i < sectors; i++) {
-			double norm = haarResponseX[i] * haarResponseX[i] + haarResponseY[i] * haarResponseY[i];
-			t = (max < norm) ? i : t;
-			max = (max < norm) ? norm : max;
-		}
-
-		// Return the angle ; better than atan which is not defined in pi/2
-		return Math.atan2(haarResponseY[t], haarResponseX[t]);
+		return estimator.getOrientation(intSeq, x, y, scale);
 	}
 
 	/**
@@ -186,7 +137,8 @@ public class KeyPoint {
 	 * Reject or interpolate the coordinate of a keypoint. This is necessary since
 	 * there was a subsampling of the image.
 	 * 
-	 * @param hessian
+	 * @param pyramid
+	 *          The Hessian layers of the octave.
 	 * @param x
 	 *          The x-coordinate of the point.
 	 * @param y
@@ -202,34 +154,34 @@ public class KeyPoint {
 	 * @return True if the point is stable with the given interpolation
 	 *         parameters.
 	 */
-	public static boolean interpolationScaleSpace(List<RegularSequence> hessian, int x, int y, int i, Point3d coord,
+	public static boolean interpolationScaleSpace(ScaleSpacePyramid pyramid, int x, int y, int i, Point3d coord,
 	    int sample, int octave) {
-		RegularSequence hs = hessian.get(i);
-		// If we are outside the image...
-		if (x <= 0 || y <= 0 || x >= hs.getWidth() - 2 || y >= hs.getHeight() - 2)
+		HessianLayer hs = pyramid.getLayer(i);
+		// If we are outside the image... (see ScaleSpacePyramid#getImageWidth())
+		if (x <= 0 || y <= 0 || x >= pyramid.getImageWidth() - 2 || y >= pyramid.getImageHeight() - 2)
 			return false;
 
 		double mx, my, mi, dx, dy, di, dxx, dyy, dii, dxy, dxi, dyi;
-		RegularSequence hsPrev = hessian.get(i - 1);
-		RegularSequence hsNext = hessian.get(i + 1);
+		HessianLayer hsPrev = pyramid.getLayer(i - 1);
+		HessianLayer hsNext = pyramid.getLayer(i + 1);
 
 		// Nabla X
-		dx = ((hs.getValue(x + 1, y) - hs.getValue(x - 1, y)) / 2.0);
-		dy = ((hs.getValue(x, y + 1) - hs.getValue(x, y - 1)) / 2.0);
-		di = ((hs.getValue(x, y) - hs.getValue(x, y)) / 2.0);
+		dx = ((hs.getResponse(x + 1, y) - hs.getResponse(x - 1, y)) / 2.0);
+		dy = ((hs.getResponse(x, y + 1) - hs.getResponse(x, y - 1)) / 2.0);
+		di = ((hs.getResponse(x, y) - hs.getResponse(x, y)) / 2.0);
 
 		// Hessian X
-		double a = hs.getValue(x, y);
-		dxx = hs.getValue(x + 1, y) + hs.getValue(x - 1, y) - 2.0 * a;
-		dyy = hs.getValue(x, y + 1) + hs.getValue(x, y + 1) - 2.0 * a;
-		dii = hsPrev.getValue(x, y) + hsNext.getValue(x, y) - 2.0 * a;
-
-		dxy = (hs.getValue(x + 1, y + 1) - hs.getValue(x + 1, y - 1) - hs.getValue(x - 1, y + 1)
-		    + hs.getValue(x - 1, y - 1)) / 4.0;
-		dxi = (hsNext.getValue(x + 1, y) - hsNext.getValue(x - 1, y) - hsPrev.getValue(x + 1, y)
-		    + hsPrev.getValue(x - 1, y)) / 4.0;
-		dyi = (hsNext.getValue(x, y + 1) - hsNext.getValue(x, y - 1) - hsPrev.getValue(x, y + 1)
-		    + hsPrev.getValue(x, y - 1)) / 4.0;
+		double a = hs.getResponse(x, y);
+		dxx = hs.getResponse(x + 1, y) + hs.getResponse(x - 1, y) - 2.0 * a;
+		dyy = hs.getResponse(x, y + 1) + hs.getResponse(x, y + 1) - 2.0 * a;
+		dii = hsPrev.getResponse(x, y) + hsNext.getResponse(x, y) - 2.0 * a;
+
+		dxy = (hs.getResponse(x + 1, y + 1) - hs.getResponse(x + 1, y - 1) - hs.getResponse(x - 1, y + 1)
+		    + hs.getResponse(x - 1, y - 1)) / 4.0;
+		dxi = (hsNext.getResponse(x + 1, y) - hsNext.getResponse(x - 1, y) - hsPrev.getResponse(x + 1, y)
+		    + hsPrev.getResponse(x - 1, y)) / 4.0;
+		dyi = (hsNext.getResponse(x, y + 1) - hsNext.getResponse(x, y - 1) - hsPrev.getResponse(x, y + 1)
+		    + hsPrev.getResponse(x, y - 1)) / 4.0;
 
 		// Det
 		double det = dxx * dyy * dii - dxx * dyi * dyi - dyy * dxi * dxi + 2 * dxi * dyi * dxy - dii * dxy * dxy;
@@ -260,26 +212,27 @@ public class KeyPoint {
 	 * threshold. Check if a point is a local maximum or not, and more than a
 	 * given threshold.
 	 * 
-	 * @param imageStamp
+	 * @param pyramid
+	 *          The Hessian layers of the octave.
 	 * @param x
 	 * @param y
 	 * @param scale
 	 * @return
 	 */
-	public static boolean isMaximum(List<RegularSequence> imageStamp, int x, int y, int scale, double threshold) {
-		RegularSequence iStp = imageStamp.get(scale);
-		RegularSequence iStpPrev = imageStamp.get(scale - 1);
-		RegularSequence iStpNext = imageStamp.get(scale + 1);
+	public static boolean isMaximum(ScaleSpacePyramid pyramid, int x, int y, int scale, double threshold) {
+		HessianLayer iStp = pyramid.getLayer(scale);
+		HessianLayer iStpPrev = pyramid.getLayer(scale - 1);
+		HessianLayer iStpNext = pyramid.getLayer(scale + 1);
 
-		double tmp = iStp.getValue(x, y);
+		double tmp = iStp.getResponse(x, y);
 		if (tmp > threshold) {
 			for (int j = -1 + y; j < 2 + y; j++) {
 				for (int i = -1 + x; i < 2 + x; i++) {
-					if (iStpPrev.getValue(i, j) >= tmp)
+					if (iStpPrev.getResponse(i, j) >= tmp)
 						return false;
-					if (iStpNext.getValue(i, j) >= tmp)
+					if (iStpNext.getResponse(i, j) >= tmp)
 						return false;
-					if ((x != i || y != j) && iStp.getValue(i, j) >= tmp)
+					if ((x != i || y != j) && iStp.getResponse(i, j) >= tmp)
 						return false;
 				}
 			}
@@ -0,0 +1,30 @@
+package algorithms.danyfel80.features.surf;
+
+/**
+ * Strategies selecting a limited amount of well spread key points among the
+ * detected ones (see {@link KeyPointSelector}).
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public enum KeyPointSelection {
+	/**
+	 * The strongest key points of each cell of a uniform grid are taken in turn.
+	 */
+	GRID("Grid"),
+	/**
+	 * Adaptive non-maximal suppression: the key points farthest from any
+	 * significantly stronger key point are kept.
+	 */
+	ANMS("Adaptive non-maximal suppression");
+
+	private final String name;
+
+	private KeyPointSelection(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
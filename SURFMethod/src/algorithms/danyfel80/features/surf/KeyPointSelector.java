@@ -0,0 +1,222 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.Arrays;
+
+/**
+ * Selection of a limited amount of key points among the detected ones,
+ * favouring the strongest Hessian responses while spreading the selected key
+ * points over the image (see {@link KeyPointSelection}).
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class KeyPointSelector {
+
+	/**
+	 * Ratio under which a response is suppressed by a stronger one in the
+	 * adaptive non-maximal suppression.
+	 */
+	private static final double ROBUSTNESS = 0.9;
+
+	/**
+	 * Selects at most the given amount of key points.
+	 * 
+	 * @param features
+	 *          The detected features, with their Hessian responses.
+	 * @param budget
+	 *          Maximum amount of selected key points.
+	 * @param selection
+	 *          The selection strategy.
+	 * @return The indices of the selected features, in increasing order.
+	 */
+	public static int[] select(FeatureSet features, int budget, KeyPointSelection selection) {
+		int n = features.size();
+		if (n <= budget) {
+			int[] all = new int[n];
+			for (int i = 0; i < n; i++) {
+				all[i] = i;
+			}
+			return all;
+		}
+
+		int[] order = sortByResponse(features);
+		int[] selected;
+		switch (selection) {
+		case GRID:
+			selected = selectGrid(features, order, budget);
+			break;
+		case ANMS:
+		default:
+			selected = selectAnms(features, order, budget);
+			break;
+		}
+		Arrays.sort(selected);
+		return selected;
+	}
+
+	/**
+	 * Takes in turn the strongest key point of each cell of a grid with about
+	 * as many cells as the budget, then the second strongest, and so on.
+	 * 
+	 * @param features
+	 *          The features.
+	 * @param order
+	 *          The features by decreasing response.
+	 * @param budget
+	 *          Amount of selected key points.
+	 * @return The indices of the selected features.
+	 */
+	private static int[] selectGrid(FeatureSet features, int[] order, int budget) {
+		Grid grid = new Grid(features, budget);
+		int[] ranks = new int[grid.columns * grid.rows];
+		long[] keys = new long[order.length];
+		for (int p = 0; p < order.length; p++) {
+			int cell = grid.getCell(features.getX(order[p]), features.getY(order[p]));
+			keys[p] = ((long) ranks[cell]++ << 32) | p;
+		}
+		Arrays.sort(keys);
+
+		int[] selected = new int[budget];
+		for (int k = 0; k < budget; k++) {
+			selected[k] = order[(int) keys[k]];
+		}
+		return selected;
+	}
+
+	/**
+	 * Computes the suppression radius of each key point, its distance to the
+	 * nearest key point whose response is significantly stronger, and takes the
+	 * key points with the largest radii. Key points are inserted by decreasing
+	 * response in a grid, so that each radius is found by searching rings of
+	 * cells around the key point.
+	 * 
+	 * @param features
+	 *          The features.
+	 * @param order
+	 *          The features by decreasing response.
+	 * @param budget
+	 *          Amount of selected key points.
+	 * @return The indices of the selected features.
+	 */
+	private static int[] selectAnms(FeatureSet features, int[] order, int budget) {
+		final int n = order.length;
+		Grid grid = new Grid(features, n);
+		int[] heads = new int[grid.columns * grid.rows];
+		int[] next = new int[n];
+		Arrays.fill(heads, -1);
+
+		long[] keys = new long[n];
+		int inserted = 0;
+		for (int p = 0; p < n; p++) {
+			double response = features.getResponse(order[p]);
+			while (inserted < p && ROBUSTNESS * features.getResponse(order[inserted]) > response) {
+				int i = order[inserted++];
+				int cell = grid.getCell(features.getX(i), features.getY(i));
+				next[i] = heads[cell];
+				heads[cell] = i;
+			}
+
+			double x = features.getX(order[p]), y = features.getY(order[p]);
+			double radius2 = Double.POSITIVE_INFINITY;
+			if (inserted > 0) {
+				int column = grid.getColumn(x), row = grid.getRow(y);
+				int maxRing = Math.max(grid.columns, grid.rows);
+				for (int ring = 0; ring <= maxRing; ring++) {
+					// Key points of the next rings are farther than (ring - 1) cells
+					double bound = Math.max(0, ring - 1) * grid.cellSize;
+					if (ring > 0 && radius2 <= bound * bound) {
+						break;
+					}
+					for (int r = Math.max(0, row - ring); r <= Math.min(grid.rows - 1, row + ring); r++) {
+						boolean edge = r == row - ring || r == row + ring;
+						int step = (edge || ring == 0) ? 1 : 2 * ring;
+						for (int c = column - ring; c <= column + ring; c += step) {
+							if (c < 0 || c >= grid.columns) {
+								continue;
+							}
+							for (int i = heads[r * grid.columns + c]; i >= 0; i = next[i]) {
+								double dx = features.getX(i) - x, dy = features.getY(i) - y;
+								radius2 = Math.min(radius2, dx * dx + dy * dy);
+							}
+						}
+					}
+				}
+			}
+			// Larger radii first, then stronger responses
+			int bits = Float.floatToIntBits((float) radius2);
+			keys[p] = ((long) (Integer.MAX_VALUE - bits) << 32) | p;
+		}
+		Arrays.sort(keys);
+
+		int[] selected = new int[budget];
+		for (int k = 0; k < budget; k++) {
+			selected[k] = order[(int) keys[k]];
+		}
+		return selected;
+	}
+
+	/**
+	 * @param features
+	 * @return The indices of the features by decreasing response, and by
+	 *         increasing index for equal responses.
+	 */
+	private static int[] sortByResponse(FeatureSet features) {
+		int n = features.size();
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			// Responses are positive, hence their bits are ordered as the responses.
+			int bits = Float.floatToIntBits((float) Math.max(0, features.getResponse(i)));
+			keys[i] = ((long) (Integer.MAX_VALUE - bits) << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] order = new int[n];
+		for (int k = 0; k < n; k++) {
+			order[k] = (int) keys[k];
+		}
+		return order;
+	}
+
+	/**
+	 * Uniform grid over the bounding box of a set of key points.
+	 */
+	private static class Grid {
+		final double minX, minY, cellSize;
+		final int columns, rows;
+
+		/**
+		 * @param features
+		 *          The key points.
+		 * @param cells
+		 *          Approximate amount of cells.
+		 */
+		Grid(FeatureSet features, int cells) {
+			double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < features.size(); i++) {
+				minX = Math.min(minX, features.getX(i));
+				minY = Math.min(minY, features.getY(i));
+				maxX = Math.max(maxX, features.getX(i));
+				maxY = Math.max(maxY, features.getY(i));
+			}
+			double width = maxX - minX, height = maxY - minY;
+			cells = Math.max(1, cells);
+			double size = Math.max(Math.sqrt(width * height / cells), Math.max(width, height) / cells);
+			this.minX = minX;
+			this.minY = minY;
+			this.cellSize = (size > 0) ? size : 1;
+			this.columns = (int) (width / cellSize) + 1;
+			this.rows = (int) (height / cellSize) + 1;
+		}
+
+		int getColumn(double x) {
+			return Math.min(columns - 1, (int) ((x - minX) / cellSize));
+		}
+
+		int getRow(double y) {
+			return Math.min(rows - 1, (int) ((y - minY) / cellSize));
+		}
+
+		int getCell(double x, double y) {
+			return getRow(y) * columns + getColumn(x);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package algorithms.danyfel80.features.surf;
+
+/**
+ * Haar sampler reading a {@link LongIntegralImage} directly.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class LongHaarSampler extends HaarSampler {
+
+	private final long[] data;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param integral
+	 *          The integral image to sample.
+	 */
+	public LongHaarSampler(LongIntegralImage integral) {
+		super(integral);
+		this.data = integral.getData();
+	}
+
+	@Override
+	public void evaluate() {
+		final long[] data = this.data;
+		final int[] o = offsets;
+		for (int k = 0; k < count; k++) {
+			int i = (xs[k] + padding) + (ys[k] + padding) * stride;
+			responsesX[k] = -((data[i + o[0]] + data[i + o[1]] - data[i + o[2]] - data[i + o[3]])
+			    + (data[i + o[4]] + data[i + o[5]] - data[i + o[6]] - data[i + o[7]]));
+			responsesY[k] = -((data[i + o[8]] + data[i + o[9]] - data[i + o[10]] - data[i + o[11]])
+			    + (data[i + o[12]] + data[i + o[13]] - data[i + o[14]] - data[i + o[15]]));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package algorithms.danyfel80.features.surf;
+
+/**
+ * Integral image stored in a long array.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class LongIntegralImage implements IntegralImage {
+
+	private int sx, sy, padding;
+	private long[] data;
+
+	/**
+	 * Constructor allocating an empty integral image. Its values are filled by
+	 * {@link IntegralImageBuilder}.
+	 * 
+	 * @param width
+	 *          Width of the padded image.
+	 * @param height
+	 *          Height of the padded image.
+	 * @param padding
+	 *          Padding on each side of the image.
+	 */
+	public LongIntegralImage(int width, int height, int padding) {
+		this.sx = width;
+		this.sy = height;
+		this.padding = padding;
+		this.data = new long[width * height];
+	}
+
+	@Override
+	public long getValue(int x, int y) {
+		return data[(x + padding) + (y + padding) * sx];
+	}
+
+	@Override
+	public int getWidth() {
+		return sx;
+	}
+
+	@Override
+	public int getHeight() {
+		return sy;
+	}
+
+	@Override
+	public int getPadding() {
+		return padding;
+	}
+
+	/**
+	 * @return Internal data, row-major with a stride equal to the width.
+	 */
+	public long[] getData() {
+		return data;
+	}
+
+	@Override
+	public long boxSum(int xa, int ya, int xb, int yb) {
+		int a1 = xa - 1 + padding;
+		int a2 = (ya - 1 + padding) * sx;
+		int b1 = xb - 1 + padding;
+		int b2 = (yb - 1 + padding) * sx;
+		return data[b1 + b2] + data[a1 + a2] - data[b1 + a2] - data[a1 + b2];
+	}
+
+	@Override
+	public double squareConvolutionXY(int a, int b, int c, int d, int x, int y) {
+		int a1 = x - a + padding;
+		int a2 = (y - b + padding) * sx;
+		int b1 = a1 - c;
+		int b2 = a2 - d * sx;
+		// Note: No L2-normalization is performed here.
+		return (data[b1 + b2] + data[a1 + a2] - data[b1 + a2] - data[a1 + b2]);
+	}
+
+	@Override
+	public long haarX(int x, int y, int lambda) {
+		return (long) -(squareConvolutionXY(1, -lambda - 1, -lambda - 1, lambda * 2 + 1, x, y)
+		    + squareConvolutionXY(0, -lambda - 1, lambda + 1, lambda * 2 + 1, x, y));
+	}
+
+	@Override
+	public long haarY(int x, int y, int lambda) {
+		return (long) -(squareConvolutionXY(-lambda - 1, 1, 2 * lambda + 1, -lambda - 1, x, y)
+		    + squareConvolutionXY(-lambda - 1, 0, 2 * lambda + 1, lambda + 1, x, y));
+	}
+}
@@ -0,0 +1,212 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.javatuples.Pair;
+
+/**
+ * Result of the matching of a set of query features against a set of target
+ * features, stored in primitive arrays. It holds the k nearest targets of each
+ * query, sorted by increasing distance, and the accepted matches as pairs of
+ * indices with the distance between their descriptors.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class MatchResult {
+
+	private final int queryCount, k;
+	private final int[] neighbours;
+	private final float[] neighbourDistances;
+
+	private int size;
+	private int[] queries, targets;
+	private float[] distances;
+
+	/**
+	 * Constructor of a result without neighbours nor matches.
+	 * 
+	 * @param queryCount
+	 *          Amount of query features.
+	 * @param k
+	 *          Amount of neighbours kept for each query.
+	 */
+	public MatchResult(int queryCount, int k) {
+		this.queryCount = queryCount;
+		this.k = k;
+		this.neighbours = new int[queryCount * k];
+		this.neighbourDistances = new float[queryCount * k];
+		clearNeighbours();
+
+		this.queries = new int[16];
+		this.targets = new int[16];
+		this.distances = new float[16];
+	}
+
+	/**
+	 * Removes the neighbours of every query.
+	 */
+	public void clearNeighbours() {
+		Arrays.fill(neighbours, -1);
+		Arrays.fill(neighbourDistances, BruteForceMatcher.MAX_DISTANCE);
+	}
+
+	/**
+	 * @return Amount of query features.
+	 */
+	public int getQueryCount() {
+		return queryCount;
+	}
+
+	/**
+	 * @return Amount of neighbours kept for each query.
+	 */
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * @param query
+	 * @param rank
+	 *          Rank of the neighbour, 0 for the nearest.
+	 * @return Index of the target, -1 if the query has less neighbours.
+	 */
+	public int getNeighbour(int query, int rank) {
+		return neighbours[query * k + rank];
+	}
+
+	/**
+	 * @param query
+	 * @param rank
+	 *          Rank of the neighbour, 0 for the nearest.
+	 * @return Distance to the target, or {@link BruteForceMatcher#MAX_DISTANCE}
+	 *         if the query has less neighbours.
+	 */
+	public float getNeighbourDistance(int query, int rank) {
+		return neighbourDistances[query * k + rank];
+	}
+
+	/**
+	 * Sets a neighbour of a query.
+	 * 
+	 * @param query
+	 * @param rank
+	 *          Rank of the neighbour, 0 for the nearest.
+	 * @param target
+	 *          Index of the target, -1 for none.
+	 * @param distance
+	 *          Distance to the target.
+	 */
+	public void setNeighbour(int query, int rank, int target, float distance) {
+		neighbours[query * k + rank] = target;
+		neighbourDistances[query * k + rank] = distance;
+	}
+
+	/**
+	 * Accepts a match.
+	 * 
+	 * @param query
+	 *          Index of the query.
+	 * @param target
+	 *          Index of the target.
+	 * @param distance
+	 *          Distance between their descriptors.
+	 */
+	public void addMatch(int query, int target, float distance) {
+		if (size == queries.length) {
+			queries = Arrays.copyOf(queries, 2 * size);
+			targets = Arrays.copyOf(targets, 2 * size);
+			distances = Arrays.copyOf(distances, 2 * size);
+		}
+		queries[size] = query;
+		targets[size] = target;
+		distances[size] = distance;
+		size++;
+	}
+
+	/**
+	 * Removes all the matches.
+	 */
+	public void clearMatches() {
+		size = 0;
+	}
+
+	/**
+	 * Removes the matches that are not kept, preserving the order of the others.
+	 * 
+	 * @param keep
+	 *          For each match, whether it is kept.
+	 */
+	public void retainMatches(boolean[] keep) {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			if (keep[i]) {
+				queries[kept] = queries[i];
+				targets[kept] = targets[i];
+				distances[kept] = distances[i];
+				kept++;
+			}
+		}
+		size = kept;
+	}
+
+	/**
+	 * @return Amount of matches.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i
+	 * @return Index of the query of the i-th match.
+	 */
+	public int getQuery(int i) {
+		return queries[i];
+	}
+
+	/**
+	 * @param i
+	 * @return Index of the target of the i-th match.
+	 */
+	public int getTarget(int i) {
+		return targets[i];
+	}
+
+	/**
+	 * @param i
+	 * @return Distance between the descriptors of the i-th match.
+	 */
+	public float getDistance(int i) {
+		return distances[i];
+	}
+
+	/**
+	 * Gives a view of the matches as pairs of descriptors. The pairs are created
+	 * when they are accessed.
+	 * 
+	 * @param queryDescriptors
+	 *          The descriptors of the queries.
+	 * @param targetDescriptors
+	 *          The descriptors of the targets.
+	 * @return The list of matches.
+	 */
+	public List<Pair<Descriptor, Descriptor>> asPairs(List<Descriptor> queryDescriptors,
+	    List<Descriptor> targetDescriptors) {
+		return new AbstractList<Pair<Descriptor, Descriptor>>() {
+			@Override
+			public Pair<Descriptor, Descriptor> get(int i) {
+				if (i < 0 || i >= size) {
+					throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+				}
+				return new Pair<Descriptor, Descriptor>(queryDescriptors.get(queries[i]), targetDescriptors.get(targets[i]));
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+}
@@ -0,0 +1,179 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Finds the scale-space maxima of an interval, the points whose Hessian
+ * response is above the threshold and strictly larger than the responses of
+ * their 26 neighbours in the interval and the two adjacent ones. It gives the
+ * same points as {@link KeyPoint#isMaximum(ScaleSpacePyramid, int, int, int, double)}
+ * tested on every interior point, in the same row-major order.
+ * 
+ * Each row is first reduced with a branchless compaction to the columns above
+ * the threshold and above their left and right neighbours, which rejects most
+ * points with sequential reads of a single row. Only the remaining columns
+ * have their 3x3 neighbourhoods read in the three layers. Bands of rows are
+ * processed concurrently and their maxima are gathered in a primitive buffer
+ * of coordinates.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class MaximumFinder {
+
+	/**
+	 * Amount of rows searched by a single task.
+	 */
+	private static final int BAND_HEIGHT = 32;
+	private ForkJoinPool pool;
+	private int size;
+	private int[] xs, ys;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param pool
+	 *          The pool to use, or null to search on the calling thread.
+	 */
+	public MaximumFinder(ForkJoinPool pool) {
+		this.pool = pool;
+		this.xs = new int[64];
+		this.ys = new int[64];
+	}
+
+	/**
+	 * Finds the maxima of an interval of the current octave of the pyramid. The
+	 * previous and next intervals must be available in the pyramid. Border
+	 * points are not searched.
+	 * 
+	 * @param pyramid
+	 *          The pyramid holding the current octave.
+	 * @param interval
+	 *          The interval to search.
+	 * @param threshold
+	 *          Threshold for detection of the Hessian.
+	 * @return The amount of maxima found.
+	 */
+	public int find(ScaleSpacePyramid pyramid, int interval, double threshold) {
+		final int w = pyramid.getWidth();
+		final int h = pyramid.getHeight();
+		final double[] previous = pyramid.getLayer(interval - 1).getResponses();
+		final double[] current = pyramid.getLayer(interval).getResponses();
+		final double[] next = pyramid.getLayer(interval + 1).getResponses();
+		size = 0;
+		if (w < 3 || h < 3) {
+			return 0;
+		}
+
+		final int bands = (h - 2 + BAND_HEIGHT - 1) / BAND_HEIGHT;
+		final int[][] bandMaxima = new int[bands][];
+		final int[] bandSizes = new int[bands];
+		SURFMethodUtils.parallelFor(pool, 0, bands, 1, (start, end) -> {
+			int[] columns = new int[w];
+			for (int band = start; band < end; band++) {
+				int[] maxima = new int[16];
+				int count = 0;
+				int yEnd = Math.min(h - 1, 1 + (band + 1) * BAND_HEIGHT);
+				for (int y = 1 + band * BAND_HEIGHT; y < yEnd; y++) {
+					int o = y * w;
+
+					// Threshold and row maximum mask, compacted to the candidate columns
+					int candidates = 0;
+					for (int x = 1; x < w - 1; x++) {
+						double value = current[o + x];
+						columns[candidates] = x;
+						candidates += (value > threshold & value > current[o + x - 1] & value > current[o + x + 1]) ? 1 : 0;
+					}
+					if (candidates == 0) {
+						continue;
+					}
+
+					// Remaining neighbours, read directly around each candidate
+					int kept = 0;
+					for (int k = 0; k < candidates; k++) {
+						int x = columns[k];
+						double value = current[o + x];
+						double m = max3(neighbourhoodMaximum(previous, o + x, w, true),
+						    neighbourhoodMaximum(next, o + x, w, true), neighbourhoodMaximum(current, o + x, w, false));
+						columns[kept] = x;
+						kept += (value > m) ? 1 : 0;
+					}
+
+					if (count + kept > maxima.length) {
+						maxima = Arrays.copyOf(maxima, Math.max(2 * maxima.length, count + kept));
+					}
+					for (int k = 0; k < kept; k++) {
+						maxima[count++] = o + columns[k];
+					}
+				}
+				bandMaxima[band] = maxima;
+				bandSizes[band] = count;
+			}
+		});
+
+		int total = 0;
+		for (int band = 0; band < bands; band++) {
+			total += bandSizes[band];
+		}
+		if (total > xs.length) {
+			xs = new int[total];
+			ys = new int[total];
+		}
+		for (int band = 0; band < bands; band++) {
+			for (int k = 0; k < bandSizes[band]; k++, size++) {
+				xs[size] = bandMaxima[band][k] % w;
+				ys[size] = bandMaxima[band][k] / w;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return Amount of maxima found by the last search.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i
+	 * @return The x-coordinate of the i-th maximum, in the sampled layer.
+	 */
+	public int getX(int i) {
+		return xs[i];
+	}
+
+	/**
+	 * @param i
+	 * @return The y-coordinate of the i-th maximum, in the sampled layer.
+	 */
+	public int getY(int i) {
+		return ys[i];
+	}
+
+	/**
+	 * Computes the maximum of the 3x3 neighbourhood of a point of a layer.
+	 * 
+	 * @param responses
+	 *          The responses of the layer.
+	 * @param centre
+	 *          Offset of the point.
+	 * @param w
+	 *          Width of the layer.
+	 * @param withCentre
+	 *          True if the point itself is part of the neighbourhood.
+	 * @return The maximum of the neighbourhood.
+	 */
+	private static double neighbourhoodMaximum(double[] responses, int centre, int w, boolean withCentre) {
+		double above = max3(responses[centre - w - 1], responses[centre - w], responses[centre - w + 1]);
+		double below = max3(responses[centre + w - 1], responses[centre + w], responses[centre + w + 1]);
+		double row = max3(responses[centre - 1], withCentre ? responses[centre] : responses[centre - 1],
+		    responses[centre + 1]);
+		return max3(above, below, row);
+	}
+
+	private static double max3(double a, double b, double c) {
+		double m = (a > b) ? a : b;
+		return (m > c) ? m : c;
+	}
+}
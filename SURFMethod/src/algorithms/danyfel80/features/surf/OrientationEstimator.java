@@ -0,0 +1,231 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.Arrays;
+
+/**
+ * Computes the orientation of key points with precomputed tables: the Gaussian
+ * weights of the samples of the disc around the key point, and the directions
+ * bounding the angular sectors, so that the sector of a Haar response is found
+ * by comparisons instead of an arctangent. The Haar answers of the disc are
+ * evaluated in a single batch (see {@link HaarSampler}). The buffers are reused from a key
+ * point to the other, so an estimator must not be shared between threads.
+ * The orientations are the same as the ones computed with the arctangent.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class OrientationEstimator {
+
+	/**
+	 * Radius of the disc of samples, in scale units.
+	 */
+	private static final int RADIUS = 6;
+	/**
+	 * Sigma of the Gaussian weighting the samples.
+	 */
+	private static final double SIGMA = 2;
+	/**
+	 * Relative distance to a sector bound under which the arctangent is used to
+	 * decide the sector.
+	 */
+	private static final double BOUND_TOLERANCE = 1e-9;
+
+	/**
+	 * Offsets of the samples of the disc, in the order they are accumulated.
+	 */
+	private static final int[] DISC_I, DISC_J;
+	/**
+	 * Gaussian weight of each sample of the disc.
+	 */
+	private static final double[] DISC_WEIGHTS;
+
+	static {
+		int n = 0;
+		for (int i = -RADIUS; i <= RADIUS; i++) {
+			for (int j = -RADIUS; j <= RADIUS; j++) {
+				if (i * i + j * j <= RADIUS * RADIUS) {
+					n++;
+				}
+			}
+		}
+		DISC_I = new int[n];
+		DISC_J = new int[n];
+		DISC_WEIGHTS = new double[n];
+		n = 0;
+		for (int i = -RADIUS; i <= RADIUS; i++) {
+			for (int j = -RADIUS; j <= RADIUS; j++) {
+				if (i * i + j * j <= RADIUS * RADIUS) {
+					DISC_I[n] = i;
+					DISC_J[n] = j;
+					DISC_WEIGHTS[n] = SURFMethodUtils.gaussian(i, j, SIGMA);
+					n++;
+				}
+			}
+		}
+	}
+
+	private final int sectors;
+	/**
+	 * Directions of the sector bounds in the upper half plane.
+	 */
+	private final double[] boundCos, boundSin;
+
+	// Scratch buffers
+	private final double[] haarResponseX, haarResponseY, haarResponseSectorX, haarResponseSectorY;
+	private final int[] scaledOffsets;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param sectors
+	 *          The amount of angular sectors.
+	 */
+	public OrientationEstimator(int sectors) {
+		this.sectors = sectors;
+		int bounds = sectors / 2;
+		boundCos = new double[bounds];
+		boundSin = new double[bounds];
+		for (int k = 0; k < bounds; k++) {
+			double angle = (k + 1) * 2.0 * Math.PI / sectors;
+			boundCos[k] = Math.cos(angle);
+			boundSin[k] = Math.sin(angle);
+		}
+
+		haarResponseX = new double[sectors];
+		haarResponseY = new double[sectors];
+		haarResponseSectorX = new double[sectors];
+		haarResponseSectorY = new double[sectors];
+		scaledOffsets = new int[2 * RADIUS + 1];
+	}
+
+	/**
+	 * @return The amount of angular sectors.
+	 */
+	public int getSectors() {
+		return sectors;
+	}
+
+	/**
+	 * Computes the orientation of a given key point
+	 * 
+	 * @param intSeq
+	 *          The integral sequence.
+	 * @param x
+	 *          The x-coordinate of the key point.
+	 * @param y
+	 *          The y-coordinate of the key point.
+	 * @param scale
+	 *          The scale at which the key point was found.
+	 * @return The orientation of the key point.
+	 */
+	public double getOrientation(IntegralImage intSeq, int x, int y, double scale) {
+		return getOrientation(HaarSampler.create(intSeq), x, y, scale);
+	}
+
+	/**
+	 * Computes the orientation of a given key point
+	 * 
+	 * @param sampler
+	 *          The Haar sampler of the integral sequence.
+	 * @param x
+	 *          The x-coordinate of the key point.
+	 * @param y
+	 *          The y-coordinate of the key point.
+	 * @param scale
+	 *          The scale at which the key point was found.
+	 * @return The orientation of the key point.
+	 */
+	public double getOrientation(HaarSampler sampler, int x, int y, double scale) {
+		Arrays.fill(haarResponseX, 0);
+		Arrays.fill(haarResponseY, 0);
+		Arrays.fill(haarResponseSectorX, 0);
+		Arrays.fill(haarResponseSectorY, 0);
+
+		for (int k = -RADIUS; k <= RADIUS; k++) {
+			scaledOffsets[k + RADIUS] = (int) (k * scale);
+		}
+
+		// Haar answers of the whole disc
+		sampler.reset((int) Math.round(2.0 * scale), DISC_WEIGHTS.length);
+		for (int n = 0; n < DISC_WEIGHTS.length; n++) {
+			sampler.add(x + scaledOffsets[DISC_I[n] + RADIUS], y + scaledOffsets[DISC_J[n] + RADIUS]);
+		}
+		sampler.evaluate();
+
+		// Computation of the contribution of each angular sectors.
+		for (int n = 0; n < DISC_WEIGHTS.length; n++) {
+			long answerX = sampler.getResponseX(n);
+			long answerY = sampler.getResponseY(n);
+
+			// Associated angle
+			int theta = getSector(answerX, answerY);
+
+			// Cumulative answers
+			haarResponseSectorX[theta] += answerX * DISC_WEIGHTS[n];
+			haarResponseSectorY[theta] += answerY * DISC_WEIGHTS[n];
+		}
+
+		// Compute a windowed answer
+		for (int i = 0; i < sectors; i++) {
+			for (int j = -sectors / 12; j <= sectors / 12; j++) {
+				if (0 <= i + j && i + j < sectors) {
+					haarResponseX[i] += haarResponseSectorX[i + j];
+					haarResponseY[i] += haarResponseSectorY[i + j];
+				}
+				// The answer can be on any cadrant of the unit circle
+				else if (i + j < 0) {
+					haarResponseX[i] += haarResponseSectorX[sectors + i + j];
+					haarResponseY[i] += haarResponseSectorY[i + j + sectors];
+				} else {
+					haarResponseX[i] += haarResponseSectorX[i + j - sectors];
+					haarResponseY[i] += haarResponseSectorY[i + j - sectors];
+				}
+			}
+		}
+
+		// Find out the maximum answer
+		double max = haarResponseX[0] * haarResponseX[0] + haarResponseY[0] * haarResponseY[0];
+
+		int t = 0;
+		for (int i = 1; i < sectors; i++) {
+			double norm = haarResponseX[i] * haarResponseX[i] + haarResponseY[i] * haarResponseY[i];
+			t = (max < norm) ? i : t;
+			max = (max < norm) ? norm : max;
+		}
+
+		// Return the angle ; better than atan which is not defined in pi/2
+		return Math.atan2(haarResponseY[t], haarResponseX[t]);
+	}
+
+	/**
+	 * Finds the angular sector of a response. Sectors of positive angles are
+	 * numbered from 0 counterclockwise, and sectors of negative angles from the
+	 * last one clockwise, except for angles closer to 0 than a sector, which
+	 * belong to the sector 0.
+	 * 
+	 * @param answerX
+	 *          The x response.
+	 * @param answerY
+	 *          The y response.
+	 * @return The sector of the angle of the response.
+	 */
+	int getSector(long answerX, long answerY) {
+		// Angle of the response folded in the upper half plane
+		double u = Math.abs((double) answerY);
+		double v = answerX;
+		double tolerance = BOUND_TOLERANCE * (u + Math.abs(v));
+
+		int s = 0;
+		for (int k = 0; k < boundCos.length; k++) {
+			double side = u * boundCos[k] - v * boundSin[k];
+			if (Math.abs(side) <= tolerance) {
+				// Too close to a bound (or on an axis), the arctangent decides.
+				int theta = (int) (Math.atan2(answerY, answerX) * sectors / (2.0 * Math.PI));
+				return (theta >= 0) ? theta : (theta + sectors);
+			}
+			if (side > 0) {
+				s++;
+			}
+		}
+		return (answerY >= 0 || s == 0) ? s : sectors - s;
+	}
+}
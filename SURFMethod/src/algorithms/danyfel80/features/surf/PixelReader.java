@@ -0,0 +1,200 @@
+package algorithms.danyfel80.features.surf;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+/**
+ * Reads the pixels of one channel of a sequence as doubles directly from its
+ * native data array, without converting the whole image. Unsigned data types
+ * are read as positive values.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public abstract class PixelReader {
+
+	/**
+	 * Copies pixels of the channel.
+	 * 
+	 * @param offset
+	 *          Index of the first pixel in the channel data.
+	 * @param length
+	 *          Amount of pixels to read.
+	 * @param dst
+	 *          Destination array, filled from index 0.
+	 */
+	public abstract void read(int offset, int length, double[] dst);
+
+	/**
+	 * Adds pixels of the channel to the destination.
+	 * 
+	 * @param offset
+	 *          Index of the first pixel in the channel data.
+	 * @param length
+	 *          Amount of pixels to read.
+	 * @param dst
+	 *          Destination array, accumulated from index 0.
+	 */
+	public abstract void add(int offset, int length, double[] dst);
+
+	/**
+	 * Creates a reader for a channel of the first image of a sequence.
+	 * 
+	 * @param sequence
+	 *          The sequence to read.
+	 * @param channel
+	 *          The channel to read.
+	 * @return The reader adapted to the data type of the sequence.
+	 * @throws IllegalArgumentException
+	 *           If the data type of the sequence is not supported.
+	 */
+	public static PixelReader create(Sequence sequence, int channel) throws IllegalArgumentException {
+		DataType type = sequence.getDataType_();
+		Object data = sequence.getDataXY(0, 0, channel);
+		switch (type) {
+		case UBYTE:
+		case BYTE:
+			return new ByteReader((byte[]) data, type.isSigned());
+		case USHORT:
+		case SHORT:
+			return new ShortReader((short[]) data, type.isSigned());
+		case UINT:
+		case INT:
+			return new IntReader((int[]) data, type.isSigned());
+		case FLOAT:
+			return new FloatReader((float[]) data);
+		case DOUBLE:
+			return new DoubleReader((double[]) data);
+		default:
+			throw new IllegalArgumentException("Unsupported data type: " + type);
+		}
+	}
+
+	/**
+	 * Reader of byte data.
+	 */
+	static class ByteReader extends PixelReader {
+		private final byte[] data;
+		private final int mask;
+
+		ByteReader(byte[] data, boolean signed) {
+			this.data = data;
+			this.mask = signed ? -1 : 0xFF;
+		}
+
+		@Override
+		public void read(int offset, int length, double[] dst) {
+			for (int i = 0; i < length; i++) {
+				dst[i] = data[offset + i] & mask;
+			}
+		}
+
+		@Override
+		public void add(int offset, int length, double[] dst) {
+			for (int i = 0; i < length; i++) {
+				dst[i] += data[offset + i] & mask;
+			}
+		}
+	}
+
+	/**
+	 * Reader of short data.
+	 */
+	static class ShortReader extends PixelReader {
+		private final short[] data;
+		private final int mask;
+
+		ShortReader(short[] data, boolean signed) {
+			this.data = data;
+			this.mask = signed ? -1 : 0xFFFF;
+		}
+
+		@Override
+		public void read(int offset, int length, double[] dst) {
+			for (int i = 0; i < length; i++) {
+				dst[i] = data[offset + i] & mask;
+			}
+		}
+
+		@Override
+		public void add(int offset, int length, double[] dst) {
+			for (int i = 0; i < length; i++) {
+				dst[i] += data[offset + i] & mask;
+			}
+		}
+	}
+
+	/**
+	 * Reader of int data.
+	 */
+	static class IntReader extends PixelReader {
+		private final int[] data;
+		private final long mask;
+
+		IntReader(int[] data, boolean signed) {
+			this.data = data;
+			this.mask = signed ? -1L : 0xFFFFFFFFL;
+		}
+
+		@Override
+		public void read(int offset, int length, double[] dst) {
+			for (int i = 0; i < length; i++) {
+				dst[i] = data[offset + i] & mask;
+			}
+		}
+
+		@Override
+		public void add(int offset, int length, double[] dst) {
+			for (int i = 0; i < length; i++) {
+				dst[i] += data[offset + i] & mask;
+			}
+		}
+	}
+
+	/**
+	 * Reader of float data.
+	 */
+	static class FloatReader extends PixelReader {
+		private final float[] data;
+
+		FloatReader(float[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public void read(int offset, int length, double[] dst) {
+			for (int i = 0; i < length; i++) {
+				dst[i] = data[offset + i];
+			}
+		}
+
+		@Override
+		public void add(int offset, int length, double[] dst) {
+			for (int i = 0; i < length; i++) {
+				dst[i] += data[offset + i];
+			}
+		}
+	}
+
+	/**
+	 * Reader of double data.
+	 */
+	static class DoubleReader extends PixelReader {
+		private final double[] data;
+
+		DoubleReader(double[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public void read(int offset, int length, double[] dst) {
+			System.arraycopy(data, offset, dst, 0, length);
+		}
+
+		@Override
+		public void add(int offset, int length, double[] dst) {
+			for (int i = 0; i < length; i++) {
+				dst[i] += data[offset + i];
+			}
+		}
+	}
+}
@@ -0,0 +1,704 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Robust estimation of the transform between the key points of two matched
+ * images, with a PROSAC variant of RANSAC: correspondences are given sorted
+ * from the most to the least reliable, and the hypotheses are first drawn
+ * among the most reliable ones, the sampling pool then growing progressively
+ * to every correspondence. Hypotheses are generated in batches whose scoring
+ * is spread on a pool, and the amount of hypotheses adapts to the best inlier
+ * ratio found so far. The best hypothesis is finally refined by least squares
+ * over its inliers.
+ * 
+ * Points are normalized (centered, with a mean distance of sqrt(2) to the
+ * origin) before the estimation, and each hypothesis is scored over primitive
+ * coordinate arrays without allocation.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class RansacEstimator {
+
+	/**
+	 * Default probability of drawing at least one sample free of outliers.
+	 */
+	public static final double DEFAULT_CONFIDENCE = 0.995;
+	/**
+	 * Default maximum amount of hypotheses.
+	 */
+	public static final int DEFAULT_MAX_ITERATIONS = 10000;
+	/**
+	 * Default maximum reprojection error of an inlier, in pixels.
+	 */
+	public static final double DEFAULT_THRESHOLD = 3.0;
+	/**
+	 * Amount of hypotheses generated before the amount of iterations is
+	 * updated.
+	 */
+	private static final int BATCH_SIZE = 64;
+	/**
+	 * Amount of hypotheses scored by a single task.
+	 */
+	private static final int HYPOTHESIS_CHUNK = 8;
+	/**
+	 * Maximum amount of least squares refinements of the best hypothesis.
+	 */
+	private static final int REFINEMENTS = 5;
+	/**
+	 * Seed of the random samples.
+	 */
+	private static final long SEED = 0x5DEECE66DL;
+
+	private final TransformModel model;
+	private final double threshold;
+	private double confidence = DEFAULT_CONFIDENCE;
+	private int maxIterations = DEFAULT_MAX_ITERATIONS;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	private double[] transform;
+	private boolean[] inliers;
+	private int inlierCount;
+	private int iterations;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param model
+	 *          The transform to estimate.
+	 * @param threshold
+	 *          Maximum reprojection error of an inlier, in pixels.
+	 */
+	public RansacEstimator(TransformModel model, double threshold) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException("The inlier threshold must be positive.");
+		}
+		this.model = model;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Sets the probability of drawing at least one sample free of outliers,
+	 * which determines the amount of hypotheses.
+	 * 
+	 * @param confidence
+	 *          Probability in (0, 1).
+	 */
+	public void setConfidence(double confidence) {
+		if (confidence <= 0 || confidence >= 1) {
+			throw new IllegalArgumentException("The confidence must be in (0, 1).");
+		}
+		this.confidence = confidence;
+	}
+
+	/**
+	 * Sets the maximum amount of hypotheses.
+	 * 
+	 * @param maxIterations
+	 *          Maximum amount of hypotheses, at least 1.
+	 */
+	public void setMaxIterations(int maxIterations) {
+		if (maxIterations < 1) {
+			throw new IllegalArgumentException("At least one iteration is needed.");
+		}
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * Sets the pool used to score the hypotheses. The result does not depend on
+	 * the pool used.
+	 * 
+	 * @param pool
+	 *          The pool to use, or null to score them on the calling thread.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Estimates the transform mapping the query features of the matches to
+	 * their target features. Matches are sampled by increasing descriptor
+	 * distance.
+	 * 
+	 * @param queries
+	 *          Features of the first image.
+	 * @param targets
+	 *          Features of the second image.
+	 * @param matches
+	 *          Matches between the features.
+	 * @return True if a transform was found.
+	 * @see #getInliers()
+	 */
+	public boolean estimate(FeatureSet queries, FeatureSet targets, MatchResult matches) {
+		int n = matches.size();
+		// Sort the matches by distance; distances are positive, hence their bits
+		// are ordered as the distances.
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = ((long) Float.floatToIntBits(matches.getDistance(i)) << 32) | i;
+		}
+		Arrays.sort(keys);
+
+		double[] x1 = new double[n], y1 = new double[n], x2 = new double[n], y2 = new double[n];
+		for (int i = 0; i < n; i++) {
+			int match = (int) keys[i];
+			x1[i] = queries.getX(matches.getQuery(match));
+			y1[i] = queries.getY(matches.getQuery(match));
+			x2[i] = targets.getX(matches.getTarget(match));
+			y2[i] = targets.getY(matches.getTarget(match));
+		}
+		boolean found = estimate(x1, y1, x2, y2);
+
+		boolean[] sortedInliers = inliers;
+		inliers = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			inliers[(int) keys[i]] = sortedInliers[i];
+		}
+		return found;
+	}
+
+	/**
+	 * Estimates the transform mapping the points (x1, y1) to the points (x2,
+	 * y2).
+	 * 
+	 * @param x1
+	 *          X-coordinates of the points of the first image.
+	 * @param y1
+	 *          Y-coordinates of the points of the first image.
+	 * @param x2
+	 *          X-coordinates of the corresponding points of the second image.
+	 * @param y2
+	 *          Y-coordinates of the corresponding points of the second image.
+	 * @return True if a transform was found.
+	 * @see #getTransform()
+	 * @see #getInliers()
+	 */
+	public boolean estimate(double[] x1, double[] y1, double[] x2, double[] y2) {
+		final int n = x1.length;
+		final int m = model.getSampleSize();
+		transform = null;
+		inliers = new boolean[n];
+		inlierCount = 0;
+		iterations = 0;
+		if (n <= m) {
+			return false;
+		}
+
+		// Normalization
+		final double[] u1 = new double[n], v1 = new double[n], u2 = new double[n], v2 = new double[n];
+		double[] norm1 = normalize(x1, y1, u1, v1);
+		double[] norm2 = normalize(x2, y2, u2, v2);
+		final double threshold2 = (threshold * norm2[2]) * (threshold * norm2[2]);
+
+		// Sampling schedule: the sampling pool grows from the m most reliable
+		// correspondences to all of them.
+		final Random random = new Random(SEED);
+		double tn = maxIterations;
+		for (int i = 0; i < m; i++) {
+			tn *= (double) (m - i) / (n - i);
+		}
+		int poolSize = m;
+		long tnPrime = 1;
+
+		final int[] samples = new int[BATCH_SIZE * m];
+		final double[] hypotheses = new double[BATCH_SIZE * 9];
+		final int[] scores = new int[BATCH_SIZE];
+		double[] best = null;
+		int bestScore = 0;
+		int limit = maxIterations;
+
+		while (iterations < limit) {
+			final int batch = Math.min(BATCH_SIZE, limit - iterations);
+			for (int b = 0; b < batch; b++) {
+				int t = iterations + b + 1;
+				if (t == tnPrime && poolSize < n) {
+					double tnNext = tn * (poolSize + 1) / (poolSize + 1 - m);
+					tnPrime += (long) Math.ceil(tnNext - tn);
+					tn = tnNext;
+					poolSize++;
+				}
+				if (tnPrime < t) {
+					drawSample(random, poolSize, m, samples, b * m);
+				} else {
+					// The newest correspondence is always part of the sample
+					drawSample(random, poolSize - 1, m - 1, samples, b * m);
+					samples[b * m + m - 1] = poolSize - 1;
+				}
+			}
+
+			SURFMethodUtils.parallelFor(pool, 0, batch, HYPOTHESIS_CHUNK, (start, end) -> {
+				double[] system = new double[model.getParameters() * (model.getParameters() + 1)];
+				double[] parameters = new double[model.getParameters()];
+				double[] h = new double[9];
+				for (int b = start; b < end; b++) {
+					if (fit(u1, v1, u2, v2, samples, b * m, m, system, parameters)) {
+						toMatrix(parameters, h);
+						System.arraycopy(h, 0, hypotheses, b * 9, 9);
+						scores[b] = score(h, u1, v1, u2, v2, threshold2, null);
+					} else {
+						scores[b] = 0;
+					}
+				}
+			});
+
+			for (int b = 0; b < batch; b++) {
+				if (scores[b] > bestScore) {
+					bestScore = scores[b];
+					best = Arrays.copyOfRange(hypotheses, b * 9, b * 9 + 9);
+				}
+			}
+			iterations += batch;
+			if (bestScore > m) {
+				limit = Math.min(maxIterations, getRequiredIterations(bestScore, n, m));
+			}
+		}
+
+		if (bestScore <= m) {
+			return false;
+		}
+
+		// Refinement over the inliers
+		int[] indices = new int[n];
+		double[] system = new double[model.getParameters() * (model.getParameters() + 1)];
+		double[] parameters = new double[model.getParameters()];
+		double[] h = new double[9];
+		boolean[] mask = new boolean[n];
+		score(best, u1, v1, u2, v2, threshold2, inliers);
+		for (int r = 0; r < REFINEMENTS; r++) {
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				if (inliers[i]) {
+					indices[count++] = i;
+				}
+			}
+			if (!fit(u1, v1, u2, v2, indices, 0, count, system, parameters)) {
+				break;
+			}
+			toMatrix(parameters, h);
+			int refinedScore = score(h, u1, v1, u2, v2, threshold2, mask);
+			if (refinedScore < bestScore) {
+				break;
+			}
+			boolean changed = refinedScore > bestScore || !Arrays.equals(mask, inliers);
+			bestScore = refinedScore;
+			System.arraycopy(h, 0, best, 0, 9);
+			System.arraycopy(mask, 0, inliers, 0, n);
+			if (!changed) {
+				break;
+			}
+		}
+
+		inlierCount = bestScore;
+		transform = denormalize(best, norm1, norm2);
+		return true;
+	}
+
+	/**
+	 * @return The transform found by the last estimation as a row-major 3x3
+	 *         matrix mapping the homogeneous coordinates of the first image to
+	 *         those of the second image, or null if none was found.
+	 */
+	public double[] getTransform() {
+		return (transform != null) ? transform.clone() : null;
+	}
+
+	/**
+	 * @return For each correspondence of the last estimation, whether it is an
+	 *         inlier of the transform found. All are false if none was found.
+	 */
+	public boolean[] getInliers() {
+		return inliers;
+	}
+
+	/**
+	 * @return Amount of inliers of the transform found by the last estimation.
+	 */
+	public int getInlierCount() {
+		return inlierCount;
+	}
+
+	/**
+	 * @return Amount of hypotheses evaluated by the last estimation.
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Computes the amount of hypotheses needed to draw a sample free of outliers
+	 * with the given confidence.
+	 * 
+	 * @param inliers
+	 *          Amount of inliers of the best hypothesis.
+	 * @param n
+	 *          Amount of correspondences.
+	 * @param m
+	 *          Size of a sample.
+	 * @return The amount of hypotheses.
+	 */
+	private int getRequiredIterations(int inliers, int n, int m) {
+		double goodSample = Math.pow((double) inliers / n, m);
+		if (goodSample >= 1) {
+			return 1;
+		}
+		double required = Math.ceil(Math.log(1 - confidence) / Math.log(1 - goodSample));
+		return (required < Integer.MAX_VALUE) ? Math.max(1, (int) required) : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Draws distinct indices in [0, range).
+	 * 
+	 * @param random
+	 *          Random generator.
+	 * @param range
+	 *          Amount of indices to draw from.
+	 * @param count
+	 *          Amount of indices to draw.
+	 * @param samples
+	 *          The drawn indices.
+	 * @param offset
+	 *          Position of the first drawn index in samples.
+	 */
+	private static void drawSample(Random random, int range, int count, int[] samples, int offset) {
+		for (int i = 0; i < count; i++) {
+			int index;
+			boolean drawn;
+			do {
+				index = random.nextInt(range);
+				drawn = false;
+				for (int j = 0; j < i; j++) {
+					drawn |= samples[offset + j] == index;
+				}
+			} while (drawn);
+			samples[offset + i] = index;
+		}
+	}
+
+	/**
+	 * Fits the transform to correspondences by linear least squares, exactly
+	 * when a minimal sample is given.
+	 * 
+	 * @param u1
+	 * @param v1
+	 * @param u2
+	 * @param v2
+	 *          Normalized coordinates of the correspondences.
+	 * @param indices
+	 *          Indices of the correspondences to fit.
+	 * @param offset
+	 *          Position of the first index.
+	 * @param count
+	 *          Amount of correspondences to fit.
+	 * @param system
+	 *          Buffer for the normal equations.
+	 * @param parameters
+	 *          The parameters of the transform.
+	 * @return False if the correspondences are degenerate.
+	 */
+	private boolean fit(double[] u1, double[] v1, double[] u2, double[] v2, int[] indices, int offset, int count,
+	    double[] system, double[] parameters) {
+		final int p = model.getParameters();
+		final int stride = p + 1;
+		Arrays.fill(system, 0);
+		for (int c = offset; c < offset + count; c++) {
+			int i = indices[c];
+			double x = u1[i], y = v1[i], u = u2[i], v = v2[i];
+			switch (model) {
+			case SIMILARITY:
+				// [x -y 1 0] = u and [y x 0 1] = v
+				system[0] += x * x + y * y;
+				system[2] += x;
+				system[3] += y;
+				system[4] += x * u + y * v;
+				system[stride + 1] += x * x + y * y;
+				system[stride + 2] -= y;
+				system[stride + 3] += x;
+				system[stride + 4] += x * v - y * u;
+				system[2 * stride + 2] += 1;
+				system[2 * stride + 4] += u;
+				system[3 * stride + 3] += 1;
+				system[3 * stride + 4] += v;
+				break;
+			case AFFINE:
+				// [x y 1 0 0 0] = u and [0 0 0 x y 1] = v
+				system[0] += x * x;
+				system[1] += x * y;
+				system[2] += x;
+				system[6] += x * u;
+				system[stride + 1] += y * y;
+				system[stride + 2] += y;
+				system[stride + 6] += y * u;
+				system[2 * stride + 2] += 1;
+				system[2 * stride + 6] += u;
+				system[3 * stride + 3] += x * x;
+				system[3 * stride + 4] += x * y;
+				system[3 * stride + 5] += x;
+				system[3 * stride + 6] += x * v;
+				system[4 * stride + 4] += y * y;
+				system[4 * stride + 5] += y;
+				system[4 * stride + 6] += y * v;
+				system[5 * stride + 5] += 1;
+				system[5 * stride + 6] += v;
+				break;
+			case HOMOGRAPHY:
+				// [x y 1 0 0 0 -xu -yu] = u and [0 0 0 x y 1 -xv -yv] = v, the
+				// parameters holding each row until the system is solved
+				double[] row = parameters;
+				row[0] = x;
+				row[1] = y;
+				row[2] = 1;
+				row[3] = 0;
+				row[4] = 0;
+				row[5] = 0;
+				row[6] = -x * u;
+				row[7] = -y * u;
+				accumulate(system, row, u, p);
+				row[0] = 0;
+				row[1] = 0;
+				row[2] = 0;
+				row[3] = x;
+				row[4] = y;
+				row[5] = 1;
+				row[6] = -x * v;
+				row[7] = -y * v;
+				accumulate(system, row, v, p);
+				break;
+			}
+		}
+		// Lower triangle of the symmetric normal equations
+		for (int r = 1; r < p; r++) {
+			for (int c = 0; c < r; c++) {
+				system[r * stride + c] = system[c * stride + r];
+			}
+		}
+		return solve(system, p, parameters);
+	}
+
+	/**
+	 * Adds a row of the linear system to the upper triangle of its normal
+	 * equations.
+	 * 
+	 * @param system
+	 *          The normal equations.
+	 * @param row
+	 *          Coefficients of the row.
+	 * @param value
+	 *          Right hand side of the row.
+	 * @param p
+	 *          Amount of parameters.
+	 */
+	private static void accumulate(double[] system, double[] row, double value, int p) {
+		for (int r = 0, i = 0; r < p; r++, i += p + 2) {
+			double a = row[r];
+			if (a != 0) {
+				for (int c = r, j = i; c < p; c++, j++) {
+					system[j] += a * row[c];
+				}
+				system[r * (p + 1) + p] += a * value;
+			}
+		}
+	}
+
+	/**
+	 * Solves an augmented linear system by Gaussian elimination with partial
+	 * pivoting. The system is overwritten.
+	 * 
+	 * @param system
+	 *          Row-major p x (p + 1) augmented matrix.
+	 * @param p
+	 *          Amount of unknowns.
+	 * @param solution
+	 *          The solution.
+	 * @return False if the system is singular.
+	 */
+	private static boolean solve(double[] system, int p, double[] solution) {
+		final int stride = p + 1;
+		double scale = 0;
+		for (int r = 0; r < p; r++) {
+			scale = Math.max(scale, Math.abs(system[r * stride + r]));
+		}
+		final double epsilon = 1e-12 * scale;
+		for (int c = 0; c < p; c++) {
+			int pivot = c;
+			for (int r = c + 1; r < p; r++) {
+				if (Math.abs(system[r * stride + c]) > Math.abs(system[pivot * stride + c])) {
+					pivot = r;
+				}
+			}
+			if (!(Math.abs(system[pivot * stride + c]) > epsilon)) {
+				return false;
+			}
+			if (pivot != c) {
+				for (int k = c; k < stride; k++) {
+					double tmp = system[c * stride + k];
+					system[c * stride + k] = system[pivot * stride + k];
+					system[pivot * stride + k] = tmp;
+				}
+			}
+			for (int r = c + 1; r < p; r++) {
+				double factor = system[r * stride + c] / system[c * stride + c];
+				if (factor != 0) {
+					for (int k = c; k < stride; k++) {
+						system[r * stride + k] -= factor * system[c * stride + k];
+					}
+				}
+			}
+		}
+		for (int r = p - 1; r >= 0; r--) {
+			double value = system[r * stride + p];
+			for (int k = r + 1; k < p; k++) {
+				value -= system[r * stride + k] * solution[k];
+			}
+			solution[r] = value / system[r * stride + r];
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the matrix of the transform from its parameters.
+	 * 
+	 * @param parameters
+	 *          The parameters of the transform.
+	 * @param h
+	 *          The row-major 3x3 matrix.
+	 */
+	private void toMatrix(double[] parameters, double[] h) {
+		switch (model) {
+		case SIMILARITY:
+			h[0] = parameters[0];
+			h[1] = -parameters[1];
+			h[2] = parameters[2];
+			h[3] = parameters[1];
+			h[4] = parameters[0];
+			h[5] = parameters[3];
+			h[6] = 0;
+			h[7] = 0;
+			break;
+		case AFFINE:
+		case HOMOGRAPHY:
+			System.arraycopy(parameters, 0, h, 0, 6);
+			h[6] = (model == TransformModel.HOMOGRAPHY) ? parameters[6] : 0;
+			h[7] = (model == TransformModel.HOMOGRAPHY) ? parameters[7] : 0;
+			break;
+		}
+		h[8] = 1;
+	}
+
+	/**
+	 * Counts the correspondences whose reprojection error by a transform is
+	 * below the threshold.
+	 * 
+	 * @param h
+	 *          Row-major 3x3 matrix of the transform.
+	 * @param u1
+	 * @param v1
+	 * @param u2
+	 * @param v2
+	 *          Normalized coordinates of the correspondences.
+	 * @param threshold2
+	 *          Squared threshold in normalized coordinates.
+	 * @param mask
+	 *          If not null, the inliers of the transform.
+	 * @return The amount of inliers.
+	 */
+	private static int score(double[] h, double[] u1, double[] v1, double[] u2, double[] v2, double threshold2,
+	    boolean[] mask) {
+		final double h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4], h5 = h[5], h6 = h[6], h7 = h[7], h8 = h[8];
+		final int n = u1.length;
+		int count = 0;
+		if (h6 == 0 && h7 == 0) {
+			for (int i = 0; i < n; i++) {
+				double du = h0 * u1[i] + h1 * v1[i] + h2 - u2[i];
+				double dv = h3 * u1[i] + h4 * v1[i] + h5 - v2[i];
+				boolean inlier = du * du + dv * dv < threshold2;
+				count += inlier ? 1 : 0;
+				if (mask != null) {
+					mask[i] = inlier;
+				}
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				double w = h6 * u1[i] + h7 * v1[i] + h8;
+				double du = (h0 * u1[i] + h1 * v1[i] + h2) / w - u2[i];
+				double dv = (h3 * u1[i] + h4 * v1[i] + h5) / w - v2[i];
+				// Points mapped behind the camera are outliers
+				boolean inlier = w > 0 && du * du + dv * dv < threshold2;
+				count += inlier ? 1 : 0;
+				if (mask != null) {
+					mask[i] = inlier;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Centers points and scales them to a mean distance of sqrt(2) to the
+	 * origin.
+	 * 
+	 * @param x
+	 * @param y
+	 *          Coordinates of the points.
+	 * @param u
+	 * @param v
+	 *          The normalized coordinates.
+	 * @return The center and the scale of the normalization.
+	 */
+	private static double[] normalize(double[] x, double[] y, double[] u, double[] v) {
+		final int n = x.length;
+		double cx = 0, cy = 0;
+		for (int i = 0; i < n; i++) {
+			cx += x[i];
+			cy += y[i];
+		}
+		cx /= n;
+		cy /= n;
+		double distance = 0;
+		for (int i = 0; i < n; i++) {
+			distance += Math.hypot(x[i] - cx, y[i] - cy);
+		}
+		distance /= n;
+		double scale = (distance > 0) ? Math.sqrt(2) / distance : 1;
+		for (int i = 0; i < n; i++) {
+			u[i] = scale * (x[i] - cx);
+			v[i] = scale * (y[i] - cy);
+		}
+		return new double[] { cx, cy, scale };
+	}
+
+	/**
+	 * Expresses a transform between normalized points in the original
+	 * coordinates.
+	 * 
+	 * @param h
+	 *          The transform between normalized points.
+	 * @param norm1
+	 *          Normalization of the points of the first image.
+	 * @param norm2
+	 *          Normalization of the points of the second image.
+	 * @return The transform between the points, with a last coefficient of 1.
+	 */
+	private static double[] denormalize(double[] h, double[] norm1, double[] norm2) {
+		// h' = T2^-1 * h * T1 with T = [s 0 -s*cx; 0 s -s*cy; 0 0 1]
+		double s1 = norm1[2], s2 = norm2[2];
+		double[] t = new double[9];
+		for (int r = 0; r < 3; r++) {
+			t[r * 3] = h[r * 3] * s1;
+			t[r * 3 + 1] = h[r * 3 + 1] * s1;
+			t[r * 3 + 2] = h[r * 3 + 2] - s1 * (h[r * 3] * norm1[0] + h[r * 3 + 1] * norm1[1]);
+		}
+		double[] result = new double[9];
+		for (int c = 0; c < 3; c++) {
+			result[c] = t[c] / s2 + norm2[0] * t[6 + c];
+			result[3 + c] = t[3 + c] / s2 + norm2[1] * t[6 + c];
+			result[6 + c] = t[6 + c];
+		}
+		double w = result[8];
+		for (int i = 0; i < 9; i++) {
+			result[i] /= w;
+		}
+		return result;
+	}
+}
@@ -1,13 +1,16 @@
 package algorithms.danyfel80.features.surf;
 
-import java.util.ArrayList;
+import java.awt.Rectangle;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
-import javax.vecmath.Point2i;
 import javax.vecmath.Point3d;
 
+import icy.roi.BooleanMask2D;
+import icy.roi.ROI;
+import icy.roi.ROI2D;
 import icy.sequence.Sequence;
-import icy.sequence.SequenceUtil;
 
 /**
  * SURF features detection class. This class holds the main logic for feature
@@ -23,14 +26,72 @@ public class SURFDescriptorsDetection {
 	/**
 	 * 2D Image to extract features from.
 	 */
-	private RegularSequence sequence;
+	private Sequence sequence;
+	/**
+	 * Region of the image to extract features from.
+	 */
+	private Rectangle region;
+	/**
+	 * Region of interest of the image in which key points are kept (null to
+	 * keep the key points of the whole region).
+	 */
+	private BooleanMask2D mask;
 	/**
 	 * Threshold for detection of the Hessian.
 	 */
 	private double threshold;
+	/**
+	 * Minimum and maximum values used to normalize the image (null to use the
+	 * range of the image).
+	 */
+	private double[] range;
+	/**
+	 * Maximum amount of key points described (0 to describe all of them).
+	 */
+	private int budget = 0;
+	/**
+	 * Strategy selecting the described key points when there are more than the
+	 * budget.
+	 */
+	private KeyPointSelection selection = KeyPointSelection.ANMS;
+	/**
+	 * If true the Hessian is not computed in the tiles of the image whose
+	 * contrast is too low to reach the threshold.
+	 */
+	private boolean skipFlatTiles = false;
+
+	/**
+	 * Pool used to compute the integral image, Hessian layers, orientations and
+	 * descriptors (null to compute them sequentially).
+	 */
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
 
 	// Internal parameters
-	private List<Descriptor> descriptors;
+	/**
+	 * Amount of rows of a Hessian layer computed by a single task.
+	 */
+	private static final int BAND_HEIGHT = 32;
+	/**
+	 * Amount of Hessian layers kept in memory: an interval and its two
+	 * neighbours.
+	 */
+	private static final int WINDOW_SIZE = 3;
+	private FeatureSet features;
+
+	// Detection kept to change the threshold
+	/**
+	 * Integral image of the region.
+	 */
+	private IntegralImage intSeq;
+	/**
+	 * Scale-space maxima above the candidate threshold, relative to the region,
+	 * with their Hessian responses.
+	 */
+	private FeatureSet candidates;
+	/**
+	 * Threshold of the detection of the candidates.
+	 */
+	private double candidateThreshold;
 
 	/**
 	 * Constructor taking a sequence and the hessian threshold
@@ -41,133 +102,441 @@ public class SURFDescriptorsDetection {
 	 *          Threshold for detection of the Hessian.
 	 */
 	public SURFDescriptorsDetection(Sequence sequence, double threshold) {
-		this.sequence = new RegularSequence(SequenceUtil.getCopy(sequence));
+		this(sequence, new Rectangle(0, 0, sequence.getWidth(), sequence.getHeight()), threshold, null);
+	}
+
+	/**
+	 * Constructor restricting the detection to a region of interest of the
+	 * image. Only the bounding box of the ROI, extended by the margin read by
+	 * the filters and the descriptors, is integrated, the Hessian is only
+	 * computed near the ROI, and only the key points lying in the ROI are kept
+	 * and described. The image is normalized with the range of the whole image,
+	 * so the key points are the ones of the whole image lying in the ROI.
+	 * 
+	 * @param sequence
+	 *          2D Image to extract features from.
+	 * @param roi
+	 *          2D region of interest of the image.
+	 * @param threshold
+	 *          Threshold for detection of the Hessian.
+	 * @throws IllegalArgumentException
+	 *           If the ROI is not a 2D ROI.
+	 */
+	public SURFDescriptorsDetection(Sequence sequence, ROI roi, double threshold) throws IllegalArgumentException {
+		this(sequence, getMask(roi), threshold);
+	}
+
+	/**
+	 * Constructor restricting the detection to the pixels of a mask.
+	 * 
+	 * @param sequence
+	 *          2D Image to extract features from.
+	 * @param mask
+	 *          Pixels of the image in which key points are detected.
+	 * @param threshold
+	 *          Threshold for detection of the Hessian.
+	 * @see #SURFDescriptorsDetection(Sequence, ROI, double)
+	 */
+	public SURFDescriptorsDetection(Sequence sequence, BooleanMask2D mask, double threshold) {
+		this(sequence, getRegion(sequence, mask), threshold, null);
+		this.mask = mask;
+	}
+
+	/**
+	 * Constructor taking a region of an image that is normalized with the given
+	 * range instead of its own. Used to process parts of a larger image. Key
+	 * points are given in the coordinates of the image.
+	 * 
+	 * @param sequence
+	 *          2D Image to extract features from.
+	 * @param region
+	 *          Region of the image to extract features from.
+	 * @param threshold
+	 *          Threshold for detection of the Hessian.
+	 * @param range
+	 *          Minimum and maximum values mapped to 0 and 255, or null to use the
+	 *          range of the region.
+	 */
+	SURFDescriptorsDetection(Sequence sequence, Rectangle region, double threshold, double[] range) {
+		this.sequence = sequence;
+		this.region = new Rectangle(region);
 		this.threshold = threshold;
+		this.range = range;
+	}
+
+	/**
+	 * @param roi
+	 *          A 2D ROI.
+	 * @return The mask of the pixels of the ROI.
+	 * @throws IllegalArgumentException
+	 *           If the ROI is not a 2D ROI.
+	 */
+	private static BooleanMask2D getMask(ROI roi) throws IllegalArgumentException {
+		if (!(roi instanceof ROI2D)) {
+			throw new IllegalArgumentException("Only 2D ROIs are supported.");
+		}
+		return ((ROI2D) roi).getBooleanMask(true);
+	}
+
+	/**
+	 * Computes the region of the image processed to detect the key points of a
+	 * mask: its bounding box extended by the footprint of the key points (see
+	 * {@link SURFMethodUtils#getFootprint()}), so that they are detected and
+	 * described as in the whole image. The region is aligned on the sampling of
+	 * the last octave so that the image is sampled on the same grid.
+	 * 
+	 * @param sequence
+	 *          The image.
+	 * @param mask
+	 *          The mask.
+	 * @return The region of the image, empty if the mask lies outside of it.
+	 */
+	private static Rectangle getRegion(Sequence sequence, BooleanMask2D mask) {
+		int maxSample = SURFMethodUtils.getMaxSample();
+		int margin = ((SURFMethodUtils.getFootprint() + maxSample - 1) / maxSample + 1) * maxSample;
+		Rectangle bounds = mask.bounds;
+		int x0 = Math.max(0, Math.floorDiv(bounds.x - margin, maxSample) * maxSample);
+		int y0 = Math.max(0, Math.floorDiv(bounds.y - margin, maxSample) * maxSample);
+		int x1 = (int) Math.min(sequence.getWidth(), (long) bounds.x + bounds.width + margin);
+		int y1 = (int) Math.min(sequence.getHeight(), (long) bounds.y + bounds.height + margin);
+		return new Rectangle(x0, y0, Math.max(0, x1 - x0), Math.max(0, y1 - y0));
+	}
+
+	/**
+	 * Sets the pool used to compute the integral image, the Hessian layers, the
+	 * orientations and the descriptors. Each interval is split in bands of rows and key points in
+	 * chunks that are processed concurrently. The detected features do not
+	 * depend on the pool used.
+	 * 
+	 * @param pool
+	 *          The pool to use, or null to perform all the computations on the
+	 *          calling thread.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Limits the amount of described key points. When more key points are
+	 * detected, the strongest ones are selected while being spread over the
+	 * image (see {@link KeyPointSelector}) before their orientations and
+	 * descriptors are computed, so that the cost of the description and of the
+	 * matching does not depend on the content of the image.
+	 * 
+	 * @param budget
+	 *          Maximum amount of key points, 0 to keep all of them.
+	 * @param selection
+	 *          The selection strategy.
+	 */
+	public void setKeyPointBudget(int budget, KeyPointSelection selection) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("The key point budget must be positive or 0.");
+		}
+		this.budget = budget;
+		this.selection = selection;
+		this.features = null;
+	}
+
+	/**
+	 * Enables the skipping of the flat tiles of the image. Before the Hessian is
+	 * computed, the integral image of the squared values bounds the contrast of
+	 * each tile of the image, and the Hessian is not computed in the tiles where
+	 * it cannot exceed the threshold, in every octave (see
+	 * {@link ContrastMask}). The detected features are the same, but the time
+	 * spent on images with large uniform areas decreases with these areas.
+	 * 
+	 * @param skipFlatTiles
+	 *          True to skip the flat tiles.
+	 */
+	public void setFlatTileSkipping(boolean skipFlatTiles) {
+		this.skipFlatTiles = skipFlatTiles;
 	}
 
 	/**
 	 * Computes the features the first time the method is called.
 	 * 
-	 * @return The resulting features.
+	 * @return The resulting features, as a view of {@link #findFeatures()}.
 	 */
 	public List<Descriptor> findDescriptors() {
-		if (descriptors == null) {
-			descriptors = new ArrayList<Descriptor>();
+		return findFeatures().asDescriptors();
+	}
 
-			this.sequence.normalizeImage();
-			IntegralSequence intSeq = new IntegralSequence(sequence);
+	/**
+	 * Computes the features the first time the method is called, or after the
+	 * threshold or the budget are changed.
+	 * 
+	 * @return The resulting features.
+	 */
+	public FeatureSet findFeatures() {
+		if (features == null) {
+			// The scale-space maxima of a lower threshold are still valid
+			if (candidates == null || threshold < candidateThreshold) {
+				detectCandidates();
+			}
+			features = candidates.select(getCandidatesAbove(threshold));
 
-			List<RegularSequence> hessian = new ArrayList<RegularSequence>(SURFMethodUtils.MAX_INTERVAL);
-			List<RegularSequence> laplacianSign = new ArrayList<RegularSequence>(SURFMethodUtils.MAX_INTERVAL);
+			// Only the selected candidates are described
+			if (budget > 0 && features.size() > budget) {
+				features = features.select(KeyPointSelector.select(features, budget, selection));
+			}
 
-			// calculate on each octave
+			// Compute the orientations and the descriptors of the candidates
+			KeyPoint.setupOrientations(intSeq, features, pool);
+			Descriptor.setupVectorDescriptors(intSeq, features, pool);
 
-			double Dxx, Dxy, Dyy;
-			int octave, interval, x, y, w, h, xcoo, ycoo, lp1, l3, mlp1p2, lp1d2, l2p1, pow, sample, l;
-			double nxy, nxx;
+			// Key points are computed relatively to the region
+			features.translate(region.x, region.y);
+		}
 
-			for (octave = 0; octave < SURFMethodUtils.MAX_OCTAVE; octave++) {
-				pow = (int) Math.pow(2, octave + 1);
-				sample = (int) Math.pow(SURFMethodUtils.SAMPLING, octave); // Sample
-				                                                           // step
-				Point2i wh = sequence.getSampleSize(sample);
-				w = wh.x;
-				h = wh.y;
+		return features;
+	}
 
-				// Memory initialization
-				for (interval = 0; interval < SURFMethodUtils.MAX_INTERVAL; interval++) {
-					hessian.add(new RegularSequence(w, h));
-					laplacianSign.add(new RegularSequence(w, h));
+	/**
+	 * Sets the threshold of the detection. The integral image and the
+	 * scale-space maxima found by the previous detection are kept, so that
+	 * raising the threshold, or lowering it down to the threshold of the first
+	 * detection, only selects the key points and computes their descriptors
+	 * again. Lower thresholds need a new detection.
+	 * 
+	 * @param threshold
+	 *          Threshold for detection of the Hessian.
+	 */
+	public void setThreshold(double threshold) {
+		if (threshold != this.threshold) {
+			this.threshold = threshold;
+			this.features = null;
+		}
+	}
+
+	/**
+	 * @return The threshold for detection of the Hessian.
+	 */
+	public double getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Sets the threshold so that the given amount of key points is detected,
+	 * as far as the current threshold allows it: the threshold is only raised,
+	 * and is read from the Hessian responses of the scale-space maxima, which
+	 * are detected once if needed. Key points with equal responses are kept or
+	 * removed together.
+	 * 
+	 * @param count
+	 *          The amount of key points wanted.
+	 * @return The new threshold.
+	 */
+	public double setThresholdForCount(int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("The amount of key points must be positive or 0.");
+		}
+		if (candidates == null || threshold < candidateThreshold) {
+			detectCandidates();
+		}
+		int[] indices = getCandidatesAbove(threshold);
+		if (count < indices.length) {
+			double[] responses = new double[indices.length];
+			for (int i = 0; i < indices.length; i++) {
+				responses[i] = candidates.getResponse(indices[i]);
+			}
+			Arrays.sort(responses);
+			// The count-th strongest response is kept, the next one is not
+			setThreshold(responses[indices.length - count - 1]);
+		}
+		return threshold;
+	}
+
+	/**
+	 * @param threshold
+	 *          Threshold for detection of the Hessian, at least the threshold of
+	 *          the detection of the candidates.
+	 * @return The indices of the candidates whose response is above the
+	 *         threshold, in increasing order.
+	 */
+	private int[] getCandidatesAbove(double threshold) {
+		int count = 0;
+		int[] indices = new int[candidates.size()];
+		for (int i = 0; i < candidates.size(); i++) {
+			if (candidates.getResponse(i) > threshold) {
+				indices[count++] = i;
+			}
+		}
+		return Arrays.copyOf(indices, count);
+	}
+
+	/**
+	 * Computes the integral image and finds the scale-space maxima above the
+	 * current threshold, without orientation nor descriptor. The Hessian
+	 * layers are dropped once searched.
+	 */
+	private void detectCandidates() {
+		candidates = new FeatureSet();
+		candidateThreshold = threshold;
+		if (region.isEmpty()) {
+			return;
+		}
+
+		if (range == null && mask != null) {
+			// The restriction to a mask does not change the normalization, so the
+			// key points of the mask are the ones of the whole image.
+			IntegralImageBuilder imageBuilder = new IntegralImageBuilder(sequence);
+			imageBuilder.setPool(pool);
+			range = imageBuilder.computeRange();
+		}
+
+		IntegralImageBuilder builder = new IntegralImageBuilder(sequence);
+		builder.setRegion(region);
+		if (range != null) {
+			builder.setRange(range[0], range[1]);
+		}
+		builder.setPool(pool);
+		if (skipFlatTiles && range == null) {
+			double[] regionRange = builder.computeRange();
+			builder.setRange(regionRange[0], regionRange[1]);
+		}
+		intSeq = builder.build();
+
+		// Tiles where the Hessian cannot reach the threshold or is not needed
+		ContrastMask tiles = null;
+		if (skipFlatTiles) {
+			tiles = new ContrastMask(intSeq, builder.buildSquared(), region.width, region.height, threshold, pool);
+		}
+		if (mask != null) {
+			if (tiles == null) {
+				tiles = new ContrastMask(region.width, region.height);
+			}
+			tiles.skipOutside(mask, region.x, region.y);
+		}
+		if (tiles != null && tiles.getSkippedCount() == 0) {
+			tiles = null;
+		}
+
+		// Only three intervals are needed at the same time to find extrema.
+		final ScaleSpacePyramid pyramid = new ScaleSpacePyramid(WINDOW_SIZE, region.width, region.height);
+		final HessianKernel kernel = HessianKernel.create(intSeq);
+		final MaximumFinder finder = new MaximumFinder(pool);
+
+		int octave, interval;
+
+		// calculate on each octave
+		for (octave = 0; octave < SURFMethodUtils.MAX_OCTAVE; octave++) {
+			pyramid.setOctave(octave, region.width, region.height);
+
+			for (interval = 0; interval < SURFMethodUtils.MAX_INTERVAL; interval++) {
+				// Layers whose filter size was used in the previous octave are
+				// subsampled from it by the pyramid.
+				if (!pyramid.isComputed(interval)) {
+					computeHessian(kernel, tiles, pyramid, interval);
+					pyramid.setComputed(interval);
 				}
 
-				// Intervals loop
-				for (interval = 0; interval < SURFMethodUtils.MAX_INTERVAL; interval++) {
-					l = pow * (interval + 1) + 1; // L in article
-
-					// These variables are precomputed to allow fast computations.
-					// They correspond exactly to the Gamma of the formula given in the
-					// article for
-					// the second order filters.
-					lp1 = -l + 1;
-					l3 = 3 * l;
-					lp1d2 = (-l + 1) / 2;
-					mlp1p2 = (-l + 1) / 2 - l;
-					l2p1 = 2 * l - 1;
-
-					nxx = Math.sqrt(6 * l * (2 * l - 1));// Frobenius norm of the xx and
-					                                     // yy filters
-					nxy = Math.sqrt(4 * l * l);// Frobenius of the xy filter.
-
-					// These are the time consuming loops that compute the Hessian at each
-					// points.
-					for (y = 0; y < h; y++) {
-						for (x = 0; x < w; x++) {
-							// Sampling
-							xcoo = x * sample;
-							ycoo = y * sample;
-
-							// Second order filters
-							Dxx = intSeq.squareConvolutionXY(lp1, mlp1p2, l2p1, l3, xcoo, ycoo)
-							    - 3 * intSeq.squareConvolutionXY(lp1, lp1d2, l2p1, l, xcoo, ycoo);
-							Dxx /= nxx;
-
-							Dyy = intSeq.squareConvolutionXY(mlp1p2, lp1, l3, l2p1, xcoo, ycoo)
-							    - 3 * intSeq.squareConvolutionXY(lp1d2, lp1, l, l2p1, xcoo, ycoo);
-							Dyy /= nxx;
-							Dxy = intSeq.squareConvolutionXY(1, 1, l, l, xcoo, ycoo)
-							    + intSeq.squareConvolutionXY(0, 0, -l, -l, xcoo, ycoo)
-							    + intSeq.squareConvolutionXY(1, 0, l, -l, xcoo, ycoo)
-							    + intSeq.squareConvolutionXY(0, 1, -l, l, xcoo, ycoo);
-
-							Dxy /= nxy;
-
-							// Computation of the Hessian and Laplacian
-							hessian.get(interval).setValue(x, y, Dxx * Dyy - 0.8317 * Dxy * Dxy);
-							laplacianSign.get(interval).setValue(x, y, (Dxx + Dyy > 0) ? 1.0 : 0.0);
-						}
-					}
+				// As soon as the next interval is ready, the previous one is searched
+				if (interval >= WINDOW_SIZE - 1) {
+					detectKeyPoints(pyramid, finder, interval - 1);
 				}
+			}
+		}
+	}
 
-				double x_, y_, s_;
-
-				// Detect keypoints
-				for (interval = 1; interval < SURFMethodUtils.MAX_INTERVAL - 1; interval++) {
-					l = pow * (interval + 1) + 1;
-
-					// border points are removed
-					for (y = 1; y < h - 1; y++) {
-						for (x = 1; x < w - 1; x++) {
-							if (KeyPoint.isMaximum(hessian, x, y, interval, threshold)) {
-								// System.out.println("Maximum (" + x + ", " + y + ")");
-								x_ = x * sample;
-								y_ = y * sample;
-								s_ = 0.4 * ((double) pow * ((double) interval + 1.0) + 2.0); // box
-								                                                             // size
-								                                                             // or
-								                                                             // scale
-								Point3d coord = new Point3d(x_, y_, s_);
-
-								// Affine refinement is performed for a given octave and
-								// sampling
-								if (KeyPoint.interpolationScaleSpace(hessian, x, y, interval, coord, sample, pow)) {
-									x_ = coord.x;
-									y_ = coord.y;
-									s_ = coord.z;
-									// System.out.println("kp added!");
-									KeyPoint.addKeyPoint(intSeq, x_, y_, laplacianSign.get(interval).getValue(x, +y) == 1.0, s_,
-									    descriptors);
-								}
-							}
+	/**
+	 * Computes the Hessian and the sign of the Laplacian of an interval in the
+	 * current octave of the pyramid. The interval is split in bands of rows that
+	 * are processed on the pool. The responses of the skipped tiles are set to 0.
+	 * 
+	 * @param kernel
+	 *          Kernel reading the integral sequence.
+	 * @param tiles
+	 *          The skipped tiles of the region, or null to compute every pixel.
+	 * @param pyramid
+	 *          The pyramid holding the current octave.
+	 * @param interval
+	 *          The interval to compute.
+	 */
+	private void computeHessian(HessianKernel kernel, ContrastMask tiles, ScaleSpacePyramid pyramid, int interval) {
+		HessianLayer layer = pyramid.getLayer(interval);
+		int sample = pyramid.getSample();
+		int l = ScaleSpacePyramid.getFilterSize(pyramid.getOctave(), interval);
+		int w = layer.getWidth();
+		int h = layer.getHeight();
+		// Width of a tile in the layer
+		int tile = ContrastMask.TILE_SIZE / sample;
+
+		// These are the time consuming loops that compute the Hessian at each
+		// points. Each band is computed row by row.
+		SURFMethodUtils.parallelFor(pool, 0, (h + BAND_HEIGHT - 1) / BAND_HEIGHT, 1, (start, end) -> {
+			double[] responses = layer.getResponses();
+			double[] traces = new double[w];
+			for (int y = start * BAND_HEIGHT; y < Math.min(h, end * BAND_HEIGHT); y++) {
+				if (tiles == null) {
+					kernel.computeRow(layer, y, 0, w, sample, l, traces);
+				} else {
+					// Runs of tiles with the same state are processed at once
+					int row = y * sample / ContrastMask.TILE_SIZE;
+					for (int column = 0; column < tiles.getColumns();) {
+						boolean skipped = tiles.isSkipped(column, row);
+						int x0 = Math.min(w, column * tile);
+						while (column < tiles.getColumns() && tiles.isSkipped(column, row) == skipped) {
+							column++;
+						}
+						int x1 = Math.min(w, column * tile);
+						if (skipped) {
+							Arrays.fill(responses, y * w + x0, y * w + x1, 0);
+							Arrays.fill(traces, x0, x1, 0);
+						} else {
+							kernel.computeRow(layer, y, x0, x1, sample, l, traces);
 						}
 					}
 				}
+				layer.setLaplacianRow(y, traces);
 			}
+		});
+	}
 
-			// Compute the descriptors
-			Descriptor.setupVectorDescriptors(intSeq, descriptors);
-		}
+	/**
+	 * Finds the key points of an interval in the current octave of the pyramid
+	 * and adds the ones lying in the mask to the candidates. The previous and
+	 * next intervals must be available in the pyramid.
+	 * 
+	 * @param pyramid
+	 *          The pyramid holding the current octave.
+	 * @param finder
+	 *          Finder of the scale-space maxima.
+	 * @param interval
+	 *          The interval to search.
+	 */
+	private void detectKeyPoints(ScaleSpacePyramid pyramid, MaximumFinder finder, int interval) {
+		int x, y;
+		int sample = pyramid.getSample();
+		int pow = (int) Math.pow(2, pyramid.getOctave() + 1);
+		double x_, y_, s_;
 
-		return descriptors;
+		// border points are removed
+		int maxima = finder.find(pyramid, interval, threshold);
+		for (int i = 0; i < maxima; i++) {
+			x = finder.getX(i);
+			y = finder.getY(i);
+			x_ = x * sample;
+			y_ = y * sample;
+			s_ = 0.4 * ((double) pow * ((double) interval + 1.0) + 2.0); // box
+			                                                             // size
+			                                                             // or
+			                                                             // scale
+			Point3d coord = new Point3d(x_, y_, s_);
+
+			// Affine refinement is performed for a given octave and
+			// sampling
+			if (KeyPoint.interpolationScaleSpace(pyramid, x, y, interval, coord, sample, pow)) {
+				x_ = coord.x;
+				y_ = coord.y;
+				s_ = coord.z;
+				if (mask != null
+				    && !mask.contains((int) Math.round(x_) + region.x, (int) Math.round(y_) + region.y)) {
+					continue;
+				}
+				HessianLayer layer = pyramid.getLayer(interval);
+				candidates.add(x_, y_, s_, layer.getResponse(x, y), layer.isLaplacianPositive(x, y));
+			}
+		}
 	}
 
 }
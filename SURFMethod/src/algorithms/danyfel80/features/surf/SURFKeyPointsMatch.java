@@ -3,8 +3,10 @@
  */
 package algorithms.danyfel80.features.surf;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.javatuples.Pair;
 
@@ -19,7 +21,62 @@ public class SURFKeyPointsMatch {
 	Sequence sequence2;
 	List<Descriptor> descriptors1;
 	List<Descriptor> descriptors2;
+	FeatureSet features1;
+	FeatureSet features2;
 
+	/**
+	 * Pool used to search the nearest descriptors (null to search them
+	 * sequentially).
+	 */
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	/**
+	 * Amount of trees of the approximate search (0 for the exact search).
+	 */
+	private int trees = 0;
+	/**
+	 * Maximum amount of descriptors compared for each descriptor in the
+	 * approximate search.
+	 */
+	private int checks = KdForestMatcher.DEFAULT_CHECKS;
+	/**
+	 * If true only mutual nearest descriptors are matched.
+	 */
+	private boolean crossCheck = false;
+
+	/**
+	 * Amount of nearest descriptors kept for each descriptor (at least the two
+	 * used by the ratio test).
+	 */
+	private int neighbours = 2;
+
+	/**
+	 * Transform predicting the positions of the matches (null to search all the
+	 * descriptors).
+	 */
+	private double[] prior = null;
+	/**
+	 * Maximum distance between a match and its predicted position, in pixels.
+	 */
+	private double searchRadius;
+	/**
+	 * Maximum ratio between the scale of a match and its predicted scale.
+	 */
+	private double scaleTolerance = GuidedMatcher.DEFAULT_SCALE_TOLERANCE;
+
+	/**
+	 * Transform verifying the matches (null to keep all the matches).
+	 */
+	private TransformModel model = null;
+	/**
+	 * Maximum reprojection error of a verified match, in pixels.
+	 */
+	private double inlierThreshold = RansacEstimator.DEFAULT_THRESHOLD;
+	/**
+	 * Transform found by the verification.
+	 */
+	private double[] transform;
+
+	MatchResult result;
 	List<Pair<Descriptor, Descriptor>> matches;
 
 	/**
@@ -30,111 +87,348 @@ public class SURFKeyPointsMatch {
 		this.sequence2 = seq2;
 		this.descriptors1 = des1;
 		this.descriptors2 = des2;
+		this.features1 = FeatureSet.fromDescriptors(des1);
+		this.features2 = FeatureSet.fromDescriptors(des2);
+	}
+
+	/**
+	 * Constructor taking the features of both sequences. Matches are given as
+	 * descriptors of the views of the feature sets (see
+	 * {@link FeatureSet#asDescriptors()}).
+	 */
+	public SURFKeyPointsMatch(Sequence seq1, Sequence seq2, FeatureSet features1, FeatureSet features2) {
+		this.sequence1 = seq1;
+		this.sequence2 = seq2;
+		this.features1 = features1;
+		this.features2 = features2;
+		this.descriptors1 = features1.asDescriptors();
+		this.descriptors2 = features2.asDescriptors();
+	}
+
+	/**
+	 * Sets the pool used to search the nearest descriptors. Blocks of
+	 * descriptors of the first sequence are processed concurrently. The matches
+	 * do not depend on the pool used.
+	 * 
+	 * @param pool
+	 *          The pool to use, or null to perform all the computations on the
+	 *          calling thread.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Uses an approximate search of the nearest descriptors, backed by a
+	 * randomized kd-tree forest built over the descriptors of the second
+	 * sequence (see {@link KdForestMatcher}). More trees and checks give more
+	 * accurate matches for a longer search.
+	 * 
+	 * @param trees
+	 *          Amount of trees of the forest.
+	 * @param checks
+	 *          Maximum amount of descriptors compared for each descriptor of the
+	 *          first sequence.
+	 * @see #measureRecall()
+	 */
+	public void setApproximateSearch(int trees, int checks) {
+		if (trees < 1 || checks < 1) {
+			throw new IllegalArgumentException("The amount of trees and checks must be positive.");
+		}
+		this.trees = trees;
+		this.checks = checks;
+	}
+
+	/**
+	 * Uses the exhaustive search of the nearest descriptors (default).
+	 */
+	public void setExactSearch() {
+		this.trees = 0;
+	}
+
+	/**
+	 * @return True if the approximate search is used.
+	 */
+	public boolean isApproximateSearch() {
+		return trees > 0;
+	}
+
+	/**
+	 * Measures the recall of the current search: the fraction of the
+	 * descriptors of the first sequence whose nearest descriptor found is the
+	 * exact nearest one.
+	 * 
+	 * @return The recall in [0, 1], 1 for the exact search.
+	 */
+	public double measureRecall() {
+		if (!isApproximateSearch()) {
+			return 1.0;
+		}
+		return new KdForestMatcher(features2, trees, checks, pool).measureRecall(features1);
+	}
+
+	/**
+	 * Guides the search of the nearest descriptors by a known transform between
+	 * the sequences, for instance the transform of a previous frame or of a
+	 * previous verified match (see {@link #getTransform()}). Each descriptor of
+	 * the first sequence is only compared with the descriptors of the second
+	 * one lying around its predicted position and with a consistent scale (see
+	 * {@link GuidedMatcher}). The guided search replaces the exact and the
+	 * approximate searches.
+	 * 
+	 * @param transform
+	 *          Row-major 3x3 matrix mapping the homogeneous coordinates of the
+	 *          first sequence to those of the second one.
+	 * @param radius
+	 *          Maximum distance between a match and its predicted position, in
+	 *          pixels.
+	 * @see #setScaleTolerance(double)
+	 */
+	public void setGuidedSearch(double[] transform, double radius) {
+		if (transform == null || transform.length != 9) {
+			throw new IllegalArgumentException("The transform must be a 3x3 matrix.");
+		}
+		if (radius <= 0) {
+			throw new IllegalArgumentException("The search radius must be positive.");
+		}
+		this.prior = transform.clone();
+		this.searchRadius = radius;
+	}
+
+	/**
+	 * Searches the nearest descriptors without prior transform (default).
+	 */
+	public void clearGuidedSearch() {
+		this.prior = null;
+	}
+
+	/**
+	 * @return True if the search is guided by a transform.
+	 */
+	public boolean isGuidedSearch() {
+		return prior != null;
+	}
+
+	/**
+	 * Sets the maximum ratio between the scale of a match of the guided search
+	 * and the scale predicted by the transform, and conversely.
+	 * 
+	 * @param scaleTolerance
+	 *          Ratio at least 1, or infinity to ignore the scales.
+	 */
+	public void setScaleTolerance(double scaleTolerance) {
+		if (!(scaleTolerance >= 1)) {
+			throw new IllegalArgumentException("The scale tolerance must be at least 1.");
+		}
+		this.scaleTolerance = scaleTolerance;
+	}
+
+	/**
+	 * Sets the amount of nearest descriptors of the second sequence kept for
+	 * each descriptor of the first one in the match result.
+	 * 
+	 * @param k
+	 *          Amount of neighbours, at least 2.
+	 * @see #getMatchResult()
+	 */
+	public void setNeighbours(int k) {
+		if (k < 2) {
+			throw new IllegalArgumentException("At least two neighbours are needed by the ratio test.");
+		}
+		this.neighbours = k;
+	}
+
+	/**
+	 * Sets whether matches must be mutual nearest neighbours: a descriptor of
+	 * the second sequence is only matched with a descriptor of the first one if
+	 * that descriptor is also its nearest. With the exact search, both
+	 * directions are found from the same distance computations.
+	 * 
+	 * @param crossCheck
+	 *          True to keep only mutual matches.
+	 */
+	public void setCrossCheck(boolean crossCheck) {
+		this.crossCheck = crossCheck;
+	}
+
+	/**
+	 * @return True if only mutual matches are kept.
+	 */
+	public boolean isCrossCheck() {
+		return crossCheck;
+	}
+
+	/**
+	 * Verifies the matches geometrically: only the matches consistent with a
+	 * single transform between the sequences are kept (see
+	 * {@link RansacEstimator}). If no transform is found, no match is kept.
+	 * 
+	 * @param model
+	 *          The transform between the sequences.
+	 * @param threshold
+	 *          Maximum reprojection error of a kept match, in pixels.
+	 * @see #getTransform()
+	 */
+	public void setGeometricVerification(TransformModel model, double threshold) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException("The inlier threshold must be positive.");
+		}
+		this.model = model;
+		this.inlierThreshold = threshold;
+	}
+
+	/**
+	 * Keeps all the matches passing the ratio test (default).
+	 */
+	public void clearGeometricVerification() {
+		this.model = null;
+	}
+
+	/**
+	 * @return True if the matches are verified geometrically.
+	 */
+	public boolean isGeometricVerification() {
+		return model != null;
 	}
 
 	/**
 	 * Finds matches between the given sets of descriptors
 	 */
 	public void matchDescriptors() {
-		matches = findMatches(descriptors1, descriptors2);
-		cleanMatches(matches);
-	}
+		result = new MatchResult(features1.size(), neighbours);
+		int[] targets = findMatches();
+		cleanMatches(targets);
 
-	private List<Pair<Descriptor, Descriptor>> findMatches(List<Descriptor> descriptors1, List<Descriptor> descriptors2) {
-		List<Pair<Descriptor, Descriptor>> matches = new ArrayList<>();
+		for (int i = 0; i < targets.length; i++) {
+			if (targets[i] >= 0) {
+				result.addMatch(i, targets[i], result.getNeighbourDistance(i, 0));
+			}
+		}
+		transform = null;
+		if (isGeometricVerification()) {
+			RansacEstimator estimator = new RansacEstimator(model, inlierThreshold);
+			estimator.setPool(pool);
+			estimator.estimate(features1, features2, result);
+			result.retainMatches(estimator.getInliers());
+			transform = estimator.getTransform();
+		}
+		matches = result.asPairs(descriptors1, descriptors2);
+	}
 
+	/**
+	 * Finds the matching descriptor of the second sequence of each descriptor of
+	 * the first one. The neighbours of each descriptor are stored in the result.
+	 * 
+	 * @return The index of the matching descriptor of each descriptor of the
+	 *         first sequence, -1 if it is not matched.
+	 */
+	private int[] findMatches() {
 		// The match uses a ratio between a selected descriptor of l1 and the
 		// two closest descriptors of l2.
 		float thrm = SURFMethodUtils.RATE * SURFMethodUtils.RATE;
 
 		// Matching is not symmetric.
-		int i, j, position;
-		float d1, d2, d;
-		for (i = 0; i < descriptors1.size(); i++) {
-			position = -1;
-			d1 = 3;
-			d2 = 3;
-
-			for (j = 0; j < descriptors2.size(); j++) {
-				d = euclideanDistance(descriptors1.get(i), descriptors2.get(j));
-				// We select the two closes descriptors
-				if (descriptors1.get(i).getKeyPoint().isSignLaplacian() == descriptors2.get(j).getKeyPoint()
-				    .isSignLaplacian()) {
-					d2 = (d2 > d) ? d : d2;
-					if (d1 > d) {
-						position = j;
-						d2 = d1;
-						d1 = d;
-					}
+		int n = features1.size();
+		int[] reverse = crossCheck ? new int[features2.size()] : null;
+		if (isGuidedSearch()) {
+			GuidedMatcher matcher = new GuidedMatcher(features2, searchRadius, pool);
+			matcher.setScaleTolerance(scaleTolerance);
+			matcher.findNeighbours(features1, prior, result);
+			if (crossCheck) {
+				MatchResult reverseResult = new MatchResult(features2.size(), 1);
+				GuidedMatcher reverseMatcher = new GuidedMatcher(features1, searchRadius, pool);
+				reverseMatcher.setScaleTolerance(scaleTolerance);
+				reverseMatcher.findNeighbours(features2, GuidedMatcher.invert(prior), reverseResult);
+				for (int j = 0; j < reverse.length; j++) {
+					reverse[j] = reverseResult.getNeighbour(j, 0);
 				}
 			}
-
-			// Try to match it
-			if (position >= 0 && thrm * d2 > d1) {
-				Pair<Descriptor, Descriptor> match = new Pair<Descriptor, Descriptor>(descriptors1.get(i),
-				    descriptors2.get(position));
-				matches.add(match);
+		} else if (isApproximateSearch()) {
+			new KdForestMatcher(features2, trees, checks, pool).findNeighbours(features1, result);
+			if (crossCheck) {
+				MatchResult reverseResult = new MatchResult(features2.size(), 1);
+				new KdForestMatcher(features1, trees, checks, pool).findNeighbours(features2, reverseResult);
+				for (int j = 0; j < reverse.length; j++) {
+					reverse[j] = reverseResult.getNeighbour(j, 0);
+				}
 			}
+		} else {
+			new BruteForceMatcher(pool).findNeighbours(features1, features2, result, reverse);
 		}
-		return matches;
-	}
 
-	private float euclideanDistance(Descriptor descriptor1, Descriptor descriptor2) {
-		float sum = 0;
-		for (int i = 0; i < 16; i++) {
-			sum += (descriptor1.getVectorDescriptors().get(i).getSumDx()
-			    - descriptor2.getVectorDescriptors().get(i).getSumDx())
-			    * (descriptor1.getVectorDescriptors().get(i).getSumDx()
-			        - descriptor2.getVectorDescriptors().get(i).getSumDx())
-			    + (descriptor1.getVectorDescriptors().get(i).getSumDy()
-			        - descriptor2.getVectorDescriptors().get(i).getSumDy())
-			        * (descriptor1.getVectorDescriptors().get(i).getSumDy()
-			            - descriptor2.getVectorDescriptors().get(i).getSumDy())
-			    + (descriptor1.getVectorDescriptors().get(i).getSumAbsDy()
-			        - descriptor2.getVectorDescriptors().get(i).getSumAbsDy())
-			        * (descriptor1.getVectorDescriptors().get(i).getSumAbsDy()
-			            - descriptor2.getVectorDescriptors().get(i).getSumAbsDy())
-			    + (descriptor1.getVectorDescriptors().get(i).getSumAbsDx()
-			        - descriptor2.getVectorDescriptors().get(i).getSumAbsDx())
-			        * (descriptor1.getVectorDescriptors().get(i).getSumAbsDx()
-			            - descriptor2.getVectorDescriptors().get(i).getSumAbsDx());
+		int[] position = new int[n];
+		for (int i = 0; i < n; i++) {
+			position[i] = result.getNeighbour(i, 0);
+			// Try to match it
+			boolean matched = position[i] >= 0 && thrm * result.getNeighbourDistance(i, 1) > result.getNeighbourDistance(i, 0);
+			if (matched && crossCheck) {
+				matched = reverse[position[i]] == i;
+			}
+			if (!matched) {
+				position[i] = -1;
+			}
 		}
-		return sum;
+		return position;
 	}
 
 	/**
-	 * Cleans the multiple-to-one in SURF.
+	 * Cleans the multiple-to-one in SURF: every match whose target lies on the
+	 * same pixel as the target of another match is removed. The matches are
+	 * counted by target pixel in a hash map.
+	 * 
+	 * @param targets
+	 *          The index of the matching descriptor of each descriptor of the
+	 *          first sequence, -1 if it is not matched. Removed matches are set
+	 *          to -1.
 	 */
-	private void cleanMatches(List<Pair<Descriptor, Descriptor>> matches) {
-		boolean[] toRemove = new boolean[matches.size()];
-
-		int i, j, x, y, x_, y_;
-		for (i = 0; i < matches.size(); i++) {
-			x = (int) matches.get(i).getValue1().getKeyPoint().getX();
-			y = (int) matches.get(i).getValue1().getKeyPoint().getY();
-			if (!toRemove[i]) {
-				for (j = i + 1; j < matches.size(); j++) {
-					// Check if i is j
-					x_ = (int) matches.get(j).getValue1().getKeyPoint().getX();
-					y_ = (int) matches.get(j).getValue1().getKeyPoint().getY();
-
-					if (x_ == x && y == y_) {
-						toRemove[i] = true;
-						toRemove[j] = true;
-					}
-				}
+	private void cleanMatches(int[] targets) {
+		Map<Long, Integer> counts = new HashMap<>();
+		for (int target : targets) {
+			if (target >= 0) {
+				counts.merge(getPixelKey(target), 1, Integer::sum);
 			}
 		}
-
-		for (i = matches.size() - 1; i >= 0; i--) {
-			if (toRemove[i]) {
-				matches.remove(i);
+		for (int i = 0; i < targets.length; i++) {
+			if (targets[i] >= 0 && counts.get(getPixelKey(targets[i])) > 1) {
+				targets[i] = -1;
 			}
 		}
 	}
 
+	/**
+	 * @param target
+	 *          Index of a descriptor of the second sequence.
+	 * @return Key of the pixel of the descriptor.
+	 */
+	private long getPixelKey(int target) {
+		int x = (int) features2.getX(target);
+		int y = (int) features2.getY(target);
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return The matches, as a view of {@link #getMatchResult()}.
+	 */
 	public List<Pair<Descriptor, Descriptor>> getMatches() {
 		return matches;
 	}
 
+	/**
+	 * @return The transform found by the geometric verification as a row-major
+	 *         3x3 matrix mapping the homogeneous coordinates of the first
+	 *         sequence to those of the second one, or null if the matches are not
+	 *         verified or no transform was found.
+	 */
+	public double[] getTransform() {
+		return (transform != null) ? transform.clone() : null;
+	}
+
+	/**
+	 * @return The matches and the neighbours of each descriptor of the first
+	 *         sequence, indexed as in the feature sets.
+	 */
+	public MatchResult getMatchResult() {
+		return result;
+	}
+
 }
@@ -1,5 +1,13 @@
 package algorithms.danyfel80.features.surf;
 
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import icy.roi.BooleanMask2D;
+import icy.roi.ROI2D;
+
 /**
  * Utility class for the SURF Method.
  * 
@@ -32,6 +40,11 @@ public class SURFMethodUtils {
 	 * Ratio between two matches
 	 */
 	public static final float RATE = 0.6f;
+	/**
+	 * Amount of key points processed by a single task when computing
+	 * orientations and descriptors.
+	 */
+	public static final int KEY_POINT_CHUNK = 256;
 
 	/**
 	 * Performs the gaussian with the given coordinate and sigma values.
@@ -47,4 +60,173 @@ public class SURFMethodUtils {
 	public static double gaussian(double x, double y, double sigma) {
 		return 1.0 / (2.0 * Math.PI * sigma * sigma) * Math.exp(-(x * x + y * y) / (2 * sigma * sigma));
 	}
+
+	/**
+	 * @return Sample step of the last octave.
+	 */
+	public static int getMaxSample() {
+		return (int) Math.pow(SAMPLING, MAX_OCTAVE - 1);
+	}
+
+	/**
+	 * @return Size of the largest box filter (L in article) used to compute the
+	 *         Hessian.
+	 */
+	public static int getMaxFilterSize() {
+		return (int) Math.pow(2, MAX_OCTAVE) * MAX_INTERVAL + 1;
+	}
+
+	/**
+	 * @return Upper bound of the scale at which a key point can be detected.
+	 */
+	public static double getMaxScale() {
+		return 0.4 * (1.0 + Math.pow(2, MAX_OCTAVE) * MAX_INTERVAL);
+	}
+
+	/**
+	 * Computes the distance around a key point in which pixels are read to
+	 * detect and describe it: the box filters of the Hessian at the neighbour
+	 * samples of the key point, and the Haar wavelets of the orientation and of
+	 * the rotated descriptor window at the largest scale.
+	 * 
+	 * @return The footprint radius in pixels.
+	 */
+	public static int getFootprint() {
+		return Math.max(getHessianExtent() + 2 * getMaxSample(), getDescriptorExtent()) + 1;
+	}
+
+	/**
+	 * Computes the padding needed around the image so that every read of the
+	 * detection falls in the padded image: the box filters of the Hessian
+	 * centered on the image pixels, and the orientation and descriptor windows of
+	 * key points lying in the image.
+	 * 
+	 * @return The padding in pixels.
+	 */
+	public static int getPadding() {
+		return Math.max(getHessianExtent(), getDescriptorExtent() + 1);
+	}
+
+	/**
+	 * @return Distance from its center reached by the largest box filter of the
+	 *         Hessian.
+	 */
+	static int getHessianExtent() {
+		return (3 * getMaxFilterSize() + 1) / 2 + 1;
+	}
+
+	/**
+	 * @return Distance from a key point reached by the Haar wavelets of its
+	 *         orientation and of its descriptor at the largest scale.
+	 */
+	private static int getDescriptorExtent() {
+		double scale = getMaxScale();
+		int orientationExtent = (int) Math.ceil(6.0 * scale) + (int) Math.round(2.0 * scale) + 2;
+		int descriptorExtent = (int) Math.ceil(Math.sqrt(2.0) * (DESCRIPTOR_SIZE * 5 / 2.0 - 0.5) * scale)
+		    + (int) Math.round(scale) + 2;
+		return Math.max(orientationExtent, descriptorExtent);
+	}
+
+	/**
+	 * Computes the mask of the union of 2D ROIs, to restrict a detection to them
+	 * (see {@link SURFDescriptorsDetection}).
+	 * 
+	 * @param rois
+	 *          The ROIs.
+	 * @return The mask of the pixels lying in at least one of the ROIs.
+	 */
+	public static BooleanMask2D getUnionMask(List<? extends ROI2D> rois) {
+		BooleanMask2D[] masks = new BooleanMask2D[rois.size()];
+		Rectangle bounds = null;
+		for (int i = 0; i < masks.length; i++) {
+			masks[i] = rois.get(i).getBooleanMask(true);
+			if (!masks[i].bounds.isEmpty()) {
+				bounds = (bounds == null) ? new Rectangle(masks[i].bounds) : bounds.union(masks[i].bounds);
+			}
+		}
+		if (bounds == null) {
+			return new BooleanMask2D(new Rectangle(), new boolean[0]);
+		}
+
+		boolean[] union = new boolean[bounds.width * bounds.height];
+		for (BooleanMask2D mask : masks) {
+			Rectangle r = mask.bounds;
+			for (int y = 0; y < r.height; y++) {
+				int offset = (r.y - bounds.y + y) * bounds.width + r.x - bounds.x;
+				for (int x = 0; x < r.width; x++) {
+					union[offset + x] |= mask.mask[y * r.width + x];
+				}
+			}
+		}
+		return new BooleanMask2D(bounds, union);
+	}
+
+	/**
+	 * Task processing a contiguous range of indices.
+	 */
+	public interface RangeTask {
+		/**
+		 * Processes the indices in [start, end).
+		 * 
+		 * @param start
+		 *          First index (inclusive).
+		 * @param end
+		 *          Last index (exclusive).
+		 */
+		void run(int start, int end);
+	}
+
+	/**
+	 * Runs the given task over [start, end) by splitting the range into chunks
+	 * of at most grain indices executed on the given pool. Each index is
+	 * processed exactly once. If the pool is null the range is processed on the
+	 * calling thread.
+	 * 
+	 * @param pool
+	 *          The pool to run the chunks on, or null to run sequentially.
+	 * @param start
+	 *          First index (inclusive).
+	 * @param end
+	 *          Last index (exclusive).
+	 * @param grain
+	 *          Maximum amount of indices processed by a single chunk.
+	 * @param task
+	 *          The task to run on each chunk.
+	 */
+	public static void parallelFor(ForkJoinPool pool, int start, int end, int grain, RangeTask task) {
+		if (end <= start)
+			return;
+		if (pool == null || end - start <= grain) {
+			task.run(start, end);
+		} else {
+			pool.invoke(new RangeAction(start, end, Math.max(1, grain), task));
+		}
+	}
+
+	/**
+	 * Fork/join action recursively halving a range until it fits the grain.
+	 */
+	private static class RangeAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int start, end, grain;
+		private final RangeTask task;
+
+		RangeAction(int start, int end, int grain, RangeTask task) {
+			this.start = start;
+			this.end = end;
+			this.grain = grain;
+			this.task = task;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= grain) {
+				task.run(start, end);
+			} else {
+				int middle = (start + end) >>> 1;
+				invokeAll(new RangeAction(start, middle, grain, task), new RangeAction(middle, end, grain, task));
+			}
+		}
+	}
 }
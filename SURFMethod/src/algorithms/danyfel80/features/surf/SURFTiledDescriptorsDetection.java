@@ -0,0 +1,230 @@
+package algorithms.danyfel80.features.surf;
+
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import icy.sequence.Sequence;
+
+/**
+ * Tiled SURF features detection for images too large to be processed at once.
+ * The image is split in tiles processed one after the other, each one with its
+ * own integral image. Each tile is extended by a margin covering the footprint of the filters and of the
+ * descriptors, so that key points found in the core of a tile are the same as
+ * the ones found on the whole image. A key point is only kept by the tile
+ * whose core contains it, so that it is reported exactly once. The size of the
+ * tiles is derived from a memory budget.
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class SURFTiledDescriptorsDetection {
+
+	/**
+	 * Estimated amount of bytes used per pixel of a padded tile: the integral
+	 * image and the window of Hessian layers.
+	 */
+	private static final int BYTES_PER_PIXEL = 32;
+	/**
+	 * Amount of bytes added per pixel of a padded tile when the flat areas are
+	 * skipped: the long integral image of the squared values. The flat tiles
+	 * mask holds a single value per tile and is neglected.
+	 */
+	private static final int FLAT_TILES_BYTES_PER_PIXEL = 8;
+
+	// Input parameters
+	/**
+	 * 2D Image to extract features from.
+	 */
+	private Sequence sequence;
+	/**
+	 * Threshold for detection of the Hessian.
+	 */
+	private double threshold;
+	/**
+	 * Maximum amount of bytes used to process a tile.
+	 */
+	private long memoryBudget;
+	/**
+	 * Pool used to process each tile (null to process them sequentially).
+	 */
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	/**
+	 * If true the flat tiles of each tile are not searched.
+	 */
+	private boolean skipFlatTiles = false;
+
+	// Internal parameters
+	private int margin;
+	private int tileSize;
+	private FeatureSet features;
+
+	/**
+	 * Constructor taking a sequence, the hessian threshold and the memory budget.
+	 * 
+	 * @param sequence
+	 *          2D Image to extract features from.
+	 * @param threshold
+	 *          Threshold for detection of the Hessian.
+	 * @param memoryBudget
+	 *          Maximum amount of bytes used to process a tile.
+	 * @throws IllegalArgumentException
+	 *           If the budget is too small to hold a tile and its margins.
+	 */
+	public SURFTiledDescriptorsDetection(Sequence sequence, double threshold, long memoryBudget)
+	    throws IllegalArgumentException {
+		this.sequence = sequence;
+		this.threshold = threshold;
+		this.memoryBudget = memoryBudget;
+
+		int maxSample = SURFMethodUtils.getMaxSample();
+		// Margins are aligned on the sampling of the last octave so that every tile
+		// samples the image on the same grid.
+		margin = ((SURFMethodUtils.getFootprint() + 2 * maxSample) / maxSample + 1) * maxSample;
+		computeTileSize();
+	}
+
+	/**
+	 * Computes the size of the tiles fitting the memory budget with the current
+	 * options.
+	 * 
+	 * @throws IllegalArgumentException
+	 *           If the budget is too small to hold a tile and its margins.
+	 */
+	private void computeTileSize() throws IllegalArgumentException {
+		int maxSample = SURFMethodUtils.getMaxSample();
+		int bytesPerPixel = BYTES_PER_PIXEL + (skipFlatTiles ? FLAT_TILES_BYTES_PER_PIXEL : 0);
+		int paddedSize = (int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(memoryBudget / bytesPerPixel));
+		int size = ((paddedSize - 2 * SURFMethodUtils.getPadding() - 2 * margin) / maxSample) * maxSample;
+		if (size <= 0) {
+			throw new IllegalArgumentException("The memory budget (" + memoryBudget
+			    + " bytes) is too small to process a tile. Tiles need at least "
+			    + (long) Math.pow(2 * SURFMethodUtils.getPadding() + 2 * margin + maxSample, 2) * bytesPerPixel
+			    + " bytes.");
+		}
+		tileSize = size;
+	}
+
+	/**
+	 * Sets the pool used to process each tile.
+	 * 
+	 * @param pool
+	 *          The pool to use, or null to perform all the computations on the
+	 *          calling thread.
+	 * @see SURFDescriptorsDetection#setPool(ForkJoinPool)
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Enables the skipping of the flat areas of each tile. The squared values
+	 * integrated to find the flat areas take memory, so the tiles are resized
+	 * to keep within the memory budget.
+	 * 
+	 * @param skipFlatTiles
+	 *          True to skip the flat areas.
+	 * @throws IllegalArgumentException
+	 *           If the budget is too small to hold a tile and its margins with
+	 *           the given option. The option is then left unchanged.
+	 * @see SURFDescriptorsDetection#setFlatTileSkipping(boolean)
+	 */
+	public void setFlatTileSkipping(boolean skipFlatTiles) throws IllegalArgumentException {
+		boolean previous = this.skipFlatTiles;
+		this.skipFlatTiles = skipFlatTiles;
+		try {
+			computeTileSize();
+		} catch (IllegalArgumentException e) {
+			this.skipFlatTiles = previous;
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Size of the core of the tiles.
+	 */
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * @return Maximum amount of bytes used to process a tile.
+	 */
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Computes the features the first time the method is called.
+	 * 
+	 * @return The resulting features, as a view of {@link #findFeatures()}.
+	 */
+	public List<Descriptor> findDescriptors() {
+		return findFeatures().asDescriptors();
+	}
+
+	/**
+	 * Computes the features the first time the method is called.
+	 * 
+	 * @return The resulting features.
+	 */
+	public FeatureSet findFeatures() {
+		if (features == null) {
+			features = new FeatureSet();
+
+			// The whole image is normalized with the same range.
+			IntegralImageBuilder builder = new IntegralImageBuilder(sequence);
+			builder.setPool(pool);
+			double[] range = builder.computeRange();
+			int w = sequence.getWidth();
+			int h = sequence.getHeight();
+
+			for (int y = 0; y < h; y += tileSize) {
+				for (int x = 0; x < w; x += tileSize) {
+					findTileDescriptors(x, y, range);
+				}
+			}
+		}
+		return features;
+	}
+
+	/**
+	 * Finds the features of the tile whose core starts at (x, y).
+	 * 
+	 * @param x
+	 *          Left of the core of the tile.
+	 * @param y
+	 *          Top of the core of the tile.
+	 * @param range
+	 *          Normalization range of the image.
+	 */
+	private void findTileDescriptors(int x, int y, double[] range) {
+		int w = sequence.getWidth();
+		int h = sequence.getHeight();
+
+		// Region processed for the tile
+		int x0 = Math.max(0, x - margin);
+		int y0 = Math.max(0, y - margin);
+		int x1 = Math.min(w, x + tileSize + margin);
+		int y1 = Math.min(h, y + tileSize + margin);
+
+		// Core of the tile. Tiles on the image borders own everything beyond them.
+		double coreX0 = (x == 0) ? Double.NEGATIVE_INFINITY : x;
+		double coreY0 = (y == 0) ? Double.NEGATIVE_INFINITY : y;
+		double coreX1 = (x + tileSize >= w) ? Double.POSITIVE_INFINITY : x + tileSize;
+		double coreY1 = (y + tileSize >= h) ? Double.POSITIVE_INFINITY : y + tileSize;
+
+		SURFDescriptorsDetection tileDetection = new SURFDescriptorsDetection(sequence,
+		    new Rectangle(x0, y0, x1 - x0, y1 - y0), threshold, range);
+		tileDetection.setPool(pool);
+		tileDetection.setFlatTileSkipping(skipFlatTiles);
+
+		FeatureSet tileFeatures = tileDetection.findFeatures();
+		for (int i = 0; i < tileFeatures.size(); i++) {
+			double kpX = tileFeatures.getX(i);
+			double kpY = tileFeatures.getY(i);
+			if (kpX >= coreX0 && kpX < coreX1 && kpY >= coreY0 && kpY < coreY1) {
+				features.add(tileFeatures, i);
+			}
+		}
+	}
+}
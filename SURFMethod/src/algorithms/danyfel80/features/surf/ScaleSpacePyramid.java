@@ -0,0 +1,209 @@
+package algorithms.danyfel80.features.surf;
+
+import java.util.Arrays;
+
+/**
+ * Hessian layers of the intervals of the octave being processed. The pyramid
+ * keeps a rolling window of a fixed amount of intervals: interval i is stored
+ * in the same layer as interval i - capacity, so a window of three layers is
+ * enough to stream the extremum detection of an octave. The layers are
+ * allocated for the first (largest) octave and reused by the following ones.
+ * 
+ * Filter sizes repeat across octaves: when the next octave is set, the layers
+ * of the window whose filter size is used again are subsampled instead of being
+ * computed a second time (see {@link #isComputed(int)}).
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class ScaleSpacePyramid {
+
+	private HessianLayer[] layers;
+	/**
+	 * Interval held by each layer in the current octave (-1 if none).
+	 */
+	private int[] intervals;
+	private int octave, sample;
+	private int imageWidth, imageHeight;
+
+	/**
+	 * Constructor allocating the layers for the first octave of an image.
+	 * 
+	 * @param capacity
+	 *          Amount of intervals kept at the same time.
+	 * @param width
+	 *          Width of the image.
+	 * @param height
+	 *          Height of the image.
+	 */
+	public ScaleSpacePyramid(int capacity, int width, int height) {
+		layers = new HessianLayer[capacity];
+		for (int i = 0; i < capacity; i++) {
+			layers[i] = new HessianLayer(width, height);
+		}
+		intervals = new int[capacity];
+		Arrays.fill(intervals, -1);
+		octave = 0;
+		sample = 1;
+		imageWidth = width;
+		imageHeight = height;
+	}
+
+	/**
+	 * Prepares the layers to hold the given octave of an image. When it follows
+	 * the current octave, the intervals of the new octave whose filter size is
+	 * held in the window are derived by subsampling and marked as computed.
+	 * Other values are lost.
+	 * 
+	 * @param octave
+	 *          The octave to hold.
+	 * @param width
+	 *          Width of the image.
+	 * @param height
+	 *          Height of the image.
+	 */
+	public void setOctave(int octave, int width, int height) {
+		int capacity = layers.length;
+		HessianLayer[] previousLayers = layers.clone();
+		int[] previousIntervals = intervals.clone();
+		int previousOctave = this.octave;
+		int factor = getSample(octave) / sample;
+
+		this.octave = octave;
+		this.sample = getSample(octave);
+		layers = new HessianLayer[capacity];
+		Arrays.fill(intervals, -1);
+
+		// Reuse the layers with the same filter size. Only the first intervals of
+		// the window are considered so that they do not evict each other.
+		if (octave == previousOctave + 1) {
+			for (int interval = 0; interval < capacity; interval++) {
+				int l = getFilterSize(octave, interval);
+				for (int i = 0; i < capacity; i++) {
+					if (previousIntervals[i] >= 0 && getFilterSize(previousOctave, previousIntervals[i]) == l) {
+						layers[interval] = previousLayers[i];
+						layers[interval].subsample(factor);
+						intervals[interval] = interval;
+						previousIntervals[i] = -1;
+						previousLayers[i] = null;
+						break;
+					}
+				}
+			}
+		}
+
+		// Remaining layers are recycled
+		int next = 0;
+		for (int i = 0; i < capacity; i++) {
+			if (layers[i] == null) {
+				while (previousLayers[next] == null) {
+					next++;
+				}
+				layers[i] = previousLayers[next++];
+				layers[i].resize(width / sample, height / sample);
+			}
+		}
+	}
+
+	/**
+	 * @param interval
+	 * @return True if the layer of the given interval already holds its values
+	 *         in the current octave.
+	 */
+	public boolean isComputed(int interval) {
+		return intervals[interval % layers.length] == interval;
+	}
+
+	/**
+	 * Marks the layer of an interval as computed. It replaces the interval
+	 * previously held by the layer.
+	 * 
+	 * @param interval
+	 */
+	public void setComputed(int interval) {
+		intervals[interval % layers.length] = interval;
+	}
+
+	/**
+	 * @param interval
+	 * @return The layer of the given interval in the current octave. Only the
+	 *         last computed intervals of the window are valid.
+	 */
+	public HessianLayer getLayer(int interval) {
+		return layers[interval % layers.length];
+	}
+
+	/**
+	 * @return Amount of intervals kept at the same time.
+	 */
+	public int getCapacity() {
+		return layers.length;
+	}
+
+	/**
+	 * @return Current octave.
+	 */
+	public int getOctave() {
+		return octave;
+	}
+
+	/**
+	 * @return Sample step of the current octave.
+	 */
+	public int getSample() {
+		return sample;
+	}
+
+	/**
+	 * @return Width of the layers in the current octave.
+	 */
+	public int getWidth() {
+		return layers[0].getWidth();
+	}
+
+	/**
+	 * @return Height of the layers in the current octave.
+	 */
+	public int getHeight() {
+		return layers[0].getHeight();
+	}
+
+	/**
+	 * @return Width of the image, i.e. of the layers in the first octave. The
+	 *         interpolation rejects the points whose sampled x-coordinate is not
+	 *         below this width minus 2 in every octave, as in the original
+	 *         implementation where the layers of all the octaves were stored in
+	 *         buffers of the size of the image. The bound only removes points in
+	 *         the first octave: the maxima of later octaves are at least one
+	 *         sample away from the border of their smaller layers.
+	 */
+	public int getImageWidth() {
+		return imageWidth;
+	}
+
+	/**
+	 * @return Height of the image, i.e. of the layers in the first octave. It
+	 *         bounds the sampled y-coordinate of the interpolated points in every
+	 *         octave (see {@link #getImageWidth()}).
+	 */
+	public int getImageHeight() {
+		return imageHeight;
+	}
+
+	/**
+	 * @param octave
+	 * @return Sample step of the given octave.
+	 */
+	public static int getSample(int octave) {
+		return (int) Math.pow(SURFMethodUtils.SAMPLING, octave);
+	}
+
+	/**
+	 * @param octave
+	 * @param interval
+	 * @return Size of the filter (L in article) of the given octave and
+	 *         interval.
+	 */
+	public static int getFilterSize(int octave, int interval) {
+		return (int) Math.pow(2, octave + 1) * (interval + 1) + 1;
+	}
+}
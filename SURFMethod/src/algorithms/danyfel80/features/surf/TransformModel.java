@@ -0,0 +1,51 @@
+package algorithms.danyfel80.features.surf;
+
+/**
+ * Geometric transforms estimated between the key points of two matched
+ * images (see {@link RansacEstimator}).
+ * 
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public enum TransformModel {
+	/**
+	 * Rotation, uniform scaling and translation.
+	 */
+	SIMILARITY("Similarity", 2, 4),
+	/**
+	 * Linear transform and translation.
+	 */
+	AFFINE("Affine", 3, 6),
+	/**
+	 * Projective transform of the plane.
+	 */
+	HOMOGRAPHY("Homography", 4, 8);
+
+	private final String name;
+	private final int sampleSize;
+	private final int parameters;
+
+	private TransformModel(String name, int sampleSize, int parameters) {
+		this.name = name;
+		this.sampleSize = sampleSize;
+		this.parameters = parameters;
+	}
+
+	/**
+	 * @return Minimal amount of point correspondences determining the transform.
+	 */
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * @return Amount of degrees of freedom of the transform.
+	 */
+	public int getParameters() {
+		return parameters;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
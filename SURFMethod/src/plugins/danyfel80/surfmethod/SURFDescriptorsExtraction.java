@@ -4,16 +4,21 @@ import java.util.List;
 
 import algorithms.danyfel80.features.surf.Descriptor;
 import algorithms.danyfel80.features.surf.SURFDescriptorsDetection;
+import algorithms.danyfel80.features.surf.SURFMethodUtils;
+import algorithms.danyfel80.features.surf.SURFTiledDescriptorsDetection;
 import icy.gui.dialog.MessageDialog;
+import icy.roi.BooleanMask2D;
 import icy.sequence.Sequence;
-import icy.sequence.SequenceUtil;
-import icy.type.DataType;
+import icy.sequence.SequenceEvent;
+import icy.sequence.SequenceEvent.SequenceEventSourceType;
+import icy.sequence.SequenceListener;
 import plugins.adufour.blocks.lang.Block;
 import plugins.adufour.blocks.util.VarList;
 import plugins.adufour.ezplug.EzGroup;
 import plugins.adufour.ezplug.EzPlug;
 import plugins.adufour.ezplug.EzVarBoolean;
 import plugins.adufour.ezplug.EzVarDouble;
+import plugins.adufour.ezplug.EzVarInteger;
 import plugins.adufour.ezplug.EzVarSequence;
 import plugins.adufour.vars.lang.Var;
 import plugins.danyfel80.surfmethod.overlay.SURFDescriptorsOverlay;
@@ -29,6 +34,8 @@ public class SURFDescriptorsExtraction extends EzPlug implements Block {
 
 	// Static Variables
 	private static final double DEFAULT_THRESHOLD = 1000;
+	private static final int DEFAULT_MEMORY_BUDGET = 1024;
+	private static final int DEFAULT_TARGET_COUNT = 1000;
 
 	// Input Variables
 	/**
@@ -43,6 +50,26 @@ public class SURFDescriptorsExtraction extends EzPlug implements Block {
 	 * If true an overlay with the keypoints will be shown in the input image.
 	 */
 	private EzVarBoolean inAddOverlay;
+	/**
+	 * If true the image is processed in tiles.
+	 */
+	private EzVarBoolean inTiled;
+	/**
+	 * The memory budget in megabytes used to process each tile.
+	 */
+	private EzVarInteger inMemoryBudget;
+	/**
+	 * The amount of keypoints to detect by raising the threshold.
+	 */
+	private EzVarInteger inTargetCount;
+	/**
+	 * If true the Hessian is not computed in the flat areas of the image.
+	 */
+	private EzVarBoolean inSkipFlat;
+	/**
+	 * If true keypoints are only detected inside the ROIs of the sequence.
+	 */
+	private EzVarBoolean inUseRois;
 
 	@Override
 	protected void initialize() {
@@ -52,7 +79,25 @@ public class SURFDescriptorsExtraction extends EzPlug implements Block {
 		inHThreshold = new EzVarDouble("Hessian Threshold", 1000, 1, 10000000, 10);
 		inHThreshold.setToolTipText("The threshold for the detection of the Hessian.");
 		inHThreshold.setOptional(true);
-		EzGroup paramsGroup = new EzGroup("Parameters", inSequence, inHThreshold);
+		inTiled = new EzVarBoolean("Tiled processing", false);
+		inTiled.setToolTipText("Process the image in tiles to bound the memory used on large images.");
+		inMemoryBudget = new EzVarInteger("Memory budget (MB)", DEFAULT_MEMORY_BUDGET, 128, Integer.MAX_VALUE, 128);
+		inMemoryBudget.setToolTipText("The maximum amount of memory used to process a tile.");
+		inTiled.addVisibilityTriggerTo(inMemoryBudget, true);
+		inTargetCount = new EzVarInteger("Target keypoint count", DEFAULT_TARGET_COUNT, 1, Integer.MAX_VALUE, 100);
+		inTargetCount.setToolTipText(
+		    "Raise the Hessian threshold until at most this amount of keypoints is detected. The threshold used is an output of the block.");
+		inTargetCount.setOptional(true);
+		inTiled.addVisibilityTriggerTo(inTargetCount, false);
+		inSkipFlat = new EzVarBoolean("Skip flat areas", false);
+		inSkipFlat.setToolTipText(
+		    "Do not compute the Hessian where the contrast of the image is too low to reach the threshold.");
+		inUseRois = new EzVarBoolean("Restrict to ROIs", false);
+		inUseRois.setToolTipText(
+		    "Only detect keypoints inside the 2D ROIs of the sequence. A sequence without ROI is processed whole.");
+		inTiled.addVisibilityTriggerTo(inUseRois, false);
+		EzGroup paramsGroup = new EzGroup("Parameters", inSequence, inHThreshold, inTiled, inMemoryBudget,
+		    inTargetCount, inSkipFlat, inUseRois);
 
 		inAddOverlay = new EzVarBoolean("Show results in sequence", true);
 		EzGroup presentationGroup = new EzGroup("Presentation", inAddOverlay);
@@ -64,11 +109,49 @@ public class SURFDescriptorsExtraction extends EzPlug implements Block {
 
 	// Internal variables
 	private Sequence seq;
+	/**
+	 * The threshold used by the detection, raised to reach the target keypoint
+	 * count if asked.
+	 */
 	private double threshold;
 	/**
 	 * The found features.
 	 */
 	private List<Descriptor> features;
+	/**
+	 * The last detection, kept to change its threshold without computing the
+	 * Hessian of its sequence again. It is reused until another sequence is
+	 * processed, the data of its sequence changes, a detection is restricted to
+	 * the ROIs or the plugin is cleaned.
+	 */
+	private SURFDescriptorsDetection detection;
+	private Sequence detectedSequence;
+	/**
+	 * True if the last detection is restricted to the ROIs, which may have
+	 * changed since.
+	 */
+	private boolean detectedInRois;
+	/**
+	 * True if the data of the detected sequence changed since the detection.
+	 */
+	private volatile boolean detectedDataChanged;
+	/**
+	 * Listener of the detected sequence marking the detection as outdated when
+	 * the data of the sequence changes.
+	 */
+	private final SequenceListener detectedSequenceListener = new SequenceListener() {
+		@Override
+		public void sequenceChanged(SequenceEvent sequenceEvent) {
+			if (sequenceEvent.getSourceType() == SequenceEventSourceType.SEQUENCE_DATA) {
+				detectedDataChanged = true;
+			}
+		}
+
+		@Override
+		public void sequenceClosed(Sequence sequence) {
+			detectedDataChanged = true;
+		}
+	};
 
 	@Override
 	protected void execute() {
@@ -85,20 +168,42 @@ public class SURFDescriptorsExtraction extends EzPlug implements Block {
 			return;
 		}
 
-		if (seq.getSizeC() > 1) {
-			seq = SequenceUtil.toGray(seq);
-		}
-		if (seq.getDataType_() != DataType.DOUBLE) {
-			seq = SequenceUtil.convertToType(seq, DataType.DOUBLE, false);
-		}
-
-		addSequence(seq);
-
 		threshold = (inHThreshold.isEnabled()) ? inHThreshold.getValue() : DEFAULT_THRESHOLD;
 
 		long startTime = System.nanoTime();
-		SURFDescriptorsDetection featureDetection = new SURFDescriptorsDetection(seq, threshold);
-		features = featureDetection.findDescriptors();
+		if (inTiled.getValue()) {
+			SURFTiledDescriptorsDetection featureDetection;
+			try {
+				featureDetection = new SURFTiledDescriptorsDetection(seq, threshold, inMemoryBudget.getValue() * 1024L * 1024L);
+				featureDetection.setFlatTileSkipping(inSkipFlat.getValue());
+			} catch (IllegalArgumentException e) {
+				MessageDialog.showDialog("Memory Error", e.getMessage(), MessageDialog.ERROR_MESSAGE);
+				return;
+			}
+			features = featureDetection.findDescriptors();
+		} else {
+			BooleanMask2D mask = null;
+			// A sequence without ROI is processed whole.
+			if (inUseRois.getValue() && !seq.getROI2Ds().isEmpty()) {
+				mask = SURFMethodUtils.getUnionMask(seq.getROI2Ds());
+			}
+			if (detection == null || detectedSequence != seq || detectedDataChanged || mask != null || detectedInRois) {
+				releaseDetection();
+				// Listen before reading the data, so that no change is missed
+				detectedSequence = seq;
+				detectedSequence.addListener(detectedSequenceListener);
+				detection = (mask != null) ? new SURFDescriptorsDetection(seq, mask, threshold)
+				    : new SURFDescriptorsDetection(seq, threshold);
+				detectedInRois = mask != null;
+			} else {
+				detection.setThreshold(threshold);
+			}
+			detection.setFlatTileSkipping(inSkipFlat.getValue());
+			if (inTargetCount.isEnabled()) {
+				threshold = detection.setThresholdForCount(inTargetCount.getValue());
+			}
+			features = detection.findDescriptors();
+		}
 
 		long endTime = System.nanoTime();
 
@@ -111,8 +216,22 @@ public class SURFDescriptorsExtraction extends EzPlug implements Block {
 		System.out.println("SURF Method has finished in " + ((endTime - startTime) / 1000000) + " milliseconds.");
 	}
 
+	/**
+	 * Releases the last detection and stops listening to its sequence.
+	 */
+	private void releaseDetection() {
+		if (detectedSequence != null) {
+			detectedSequence.removeListener(detectedSequenceListener);
+		}
+		detection = null;
+		detectedSequence = null;
+		detectedInRois = false;
+		detectedDataChanged = false;
+	}
+
 	@Override
 	public void clean() {
+		releaseDetection();
 	}
 
 	// For protocols
@@ -121,14 +240,24 @@ public class SURFDescriptorsExtraction extends EzPlug implements Block {
 		inputMap.add(inSequence.name, inSequence.getVariable());
 		inputMap.add(inHThreshold.name, inHThreshold.getVariable());
 		inputMap.add(inAddOverlay.name, inAddOverlay.getVariable());
+		inputMap.add(inTiled.name, inTiled.getVariable());
+		inputMap.add(inMemoryBudget.name, inMemoryBudget.getVariable());
+		inputMap.add(inTargetCount.name, inTargetCount.getVariable());
+		inputMap.add(inSkipFlat.name, inSkipFlat.getVariable());
+		inputMap.add(inUseRois.name, inUseRois.getVariable());
 	}
 
 	Var<List<Descriptor>> outFeatures;
+	Var<Double> outThreshold;
 
 	@Override
 	public void declareOutput(VarList outputMap) {
 		outFeatures = new Var<List<Descriptor>>("Features", features);
 		outFeatures.setValue(features);
 		outputMap.add(outFeatures.getName(), outFeatures);
+
+		outThreshold = new Var<Double>("Hessian threshold used", threshold);
+		outThreshold.setValue(threshold);
+		outputMap.add(outThreshold.getName(), outThreshold);
 	}
 }
@@ -1,24 +1,32 @@
 package plugins.danyfel80.surfmethod;
 
 import java.awt.geom.Point2D;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.javatuples.Pair;
 
 import algorithms.danyfel80.features.surf.Descriptor;
+import algorithms.danyfel80.features.surf.FeatureSet;
+import algorithms.danyfel80.features.surf.KdForestMatcher;
+import algorithms.danyfel80.features.surf.MatchResult;
+import algorithms.danyfel80.features.surf.RansacEstimator;
 import algorithms.danyfel80.features.surf.SURFDescriptorsDetection;
 import algorithms.danyfel80.features.surf.SURFKeyPointsMatch;
+import algorithms.danyfel80.features.surf.SURFMethodUtils;
+import algorithms.danyfel80.features.surf.TransformModel;
 import icy.gui.dialog.MessageDialog;
 import icy.roi.ROI;
+import icy.roi.ROI2D;
 import icy.sequence.Sequence;
-import icy.sequence.SequenceUtil;
-import icy.type.DataType;
 import plugins.adufour.blocks.lang.Block;
 import plugins.adufour.blocks.util.VarList;
 import plugins.adufour.ezplug.EzGroup;
 import plugins.adufour.ezplug.EzPlug;
 import plugins.adufour.ezplug.EzVarBoolean;
 import plugins.adufour.ezplug.EzVarDouble;
+import plugins.adufour.ezplug.EzVarEnum;
+import plugins.adufour.ezplug.EzVarInteger;
 import plugins.adufour.ezplug.EzVarSequence;
 import plugins.adufour.vars.lang.Var;
 import plugins.danyfel80.surfmethod.overlay.SURFDescriptorsOverlay;
@@ -53,6 +61,40 @@ public class SURFSequenceMatch extends EzPlug implements Block {
 	 * input image.
 	 */
 	private EzVarBoolean inAddOverlay;
+	/**
+	 * If true only mutual nearest descriptors are matched.
+	 */
+	private EzVarBoolean inCrossCheck;
+	/**
+	 * If true the nearest descriptors are searched approximately.
+	 */
+	private EzVarBoolean inApproximate;
+	/**
+	 * The amount of trees of the approximate search.
+	 */
+	private EzVarInteger inTrees;
+	/**
+	 * The maximum amount of descriptors compared for each descriptor in the
+	 * approximate search.
+	 */
+	private EzVarInteger inChecks;
+	/**
+	 * If true only the matches consistent with a transform between the images
+	 * are kept.
+	 */
+	private EzVarBoolean inVerify;
+	/**
+	 * The transform between the images.
+	 */
+	private EzVarEnum<TransformModel> inModel;
+	/**
+	 * The maximum reprojection error of a kept match.
+	 */
+	private EzVarDouble inInlierThreshold;
+	/**
+	 * If true keypoints are only detected inside the ROIs of each sequence.
+	 */
+	private EzVarBoolean inUseRois;
 
 	/*
 	 * (non-Javadoc)
@@ -69,7 +111,29 @@ public class SURFSequenceMatch extends EzPlug implements Block {
 		inHThreshold
 		    .setToolTipText("The threshold for the detection of the Hessian. (by default " + DEFAULT_THRESHOLD + ")");
 		inHThreshold.setOptional(true);
-		EzGroup paramsGroup = new EzGroup("Parameters", inSequence1, inSequence2, inHThreshold);
+		inCrossCheck = new EzVarBoolean("Cross-check matches", false);
+		inCrossCheck.setToolTipText("Only match descriptors that are the nearest of each other.");
+		inApproximate = new EzVarBoolean("Approximate matching", false);
+		inApproximate.setToolTipText("Search the nearest descriptors with a randomized kd-tree forest.");
+		inTrees = new EzVarInteger("Trees", KdForestMatcher.DEFAULT_TREES, 1, 64, 1);
+		inTrees.setToolTipText("The amount of trees of the approximate search.");
+		inChecks = new EzVarInteger("Checks", KdForestMatcher.DEFAULT_CHECKS, 1, Integer.MAX_VALUE, 16);
+		inChecks.setToolTipText("The maximum amount of descriptors compared for each descriptor.");
+		inApproximate.addVisibilityTriggerTo(inTrees, true);
+		inApproximate.addVisibilityTriggerTo(inChecks, true);
+		inVerify = new EzVarBoolean("Geometric verification", false);
+		inVerify.setToolTipText("Only keep the matches consistent with a transform between the images.");
+		inModel = new EzVarEnum<TransformModel>("Transform", TransformModel.values(), TransformModel.HOMOGRAPHY);
+		inModel.setToolTipText("The transform between the images.");
+		inInlierThreshold = new EzVarDouble("Inlier threshold (px)", RansacEstimator.DEFAULT_THRESHOLD, 0.1, 1000, 0.5);
+		inInlierThreshold.setToolTipText("The maximum reprojection error of a kept match.");
+		inVerify.addVisibilityTriggerTo(inModel, true);
+		inVerify.addVisibilityTriggerTo(inInlierThreshold, true);
+		inUseRois = new EzVarBoolean("Restrict to ROIs", false);
+		inUseRois.setToolTipText(
+		    "Only detect keypoints inside the 2D ROIs of each sequence. Sequences without ROI are processed whole.");
+		EzGroup paramsGroup = new EzGroup("Parameters", inSequence1, inSequence2, inHThreshold, inUseRois,
+		    inCrossCheck, inApproximate, inTrees, inChecks, inVerify, inModel, inInlierThreshold);
 
 		inAddOverlay = new EzVarBoolean("Show results in sequence", true);
 		EzGroup presentationGroup = new EzGroup("Presentation", inAddOverlay);
@@ -92,6 +156,15 @@ public class SURFSequenceMatch extends EzPlug implements Block {
 	 * Matches found
 	 */
 	private List<Pair<Descriptor, Descriptor>> matches;
+	/**
+	 * Transform between the sequences found by the geometric verification.
+	 */
+	private double[] transform;
+	/**
+	 * Fraction of the descriptors of sequence 1 whose nearest descriptor found
+	 * is the exact nearest one (1 for the exact search).
+	 */
+	private double recall;
 
 	/*
 	 * (non-Javadoc)
@@ -114,28 +187,16 @@ public class SURFSequenceMatch extends EzPlug implements Block {
 			return;
 		}
 
-		// Sequence adaptation
-		if (seq1.getSizeC() > 1) {
-			seq1 = SequenceUtil.toGray(seq1);
-		}
-		if (seq1.getDataType_() != DataType.DOUBLE) {
-			seq1 = SequenceUtil.convertToType(seq1, DataType.DOUBLE, false);
-		}
-		if (seq2.getSizeC() > 1) {
-			seq2 = SequenceUtil.toGray(seq2);
-		}
-		if (seq2.getDataType_() != DataType.DOUBLE) {
-			seq2 = SequenceUtil.convertToType(seq2, DataType.DOUBLE, false);
-		}
-
 		threshold = (inHThreshold.isEnabled()) ? inHThreshold.getValue() : DEFAULT_THRESHOLD;
 
 		// Descriptors extraction
 		long startTime = System.nanoTime();
-		SURFDescriptorsDetection descriptorDetection1 = new SURFDescriptorsDetection(seq1, threshold);
-		descriptors1 = descriptorDetection1.findDescriptors();
-		SURFDescriptorsDetection descriptorDetection2 = new SURFDescriptorsDetection(seq2, threshold);
-		descriptors2 = descriptorDetection2.findDescriptors();
+		SURFDescriptorsDetection descriptorDetection1 = createDetection(seq1);
+		FeatureSet features1 = descriptorDetection1.findFeatures();
+		descriptors1 = features1.asDescriptors();
+		SURFDescriptorsDetection descriptorDetection2 = createDetection(seq2);
+		FeatureSet features2 = descriptorDetection2.findFeatures();
+		descriptors2 = features2.asDescriptors();
 
 		long endTime = System.nanoTime();
 
@@ -146,12 +207,27 @@ public class SURFSequenceMatch extends EzPlug implements Block {
 
 		// Match descriptors
 		long startTime1 = System.nanoTime();
-		SURFKeyPointsMatch matcher = new SURFKeyPointsMatch(seq1, seq2, descriptors1, descriptors2);
+		SURFKeyPointsMatch matcher = new SURFKeyPointsMatch(seq1, seq2, features1, features2);
+		matcher.setCrossCheck(inCrossCheck.getValue());
+		if (inApproximate.getValue()) {
+			matcher.setApproximateSearch(inTrees.getValue(), inChecks.getValue());
+		}
+		if (inVerify.getValue()) {
+			matcher.setGeometricVerification(inModel.getValue(), inInlierThreshold.getValue());
+		}
 		matcher.matchDescriptors();
 		matches = matcher.getMatches();
+		transform = matcher.getTransform();
 		endTime = System.nanoTime();
+		recall = matcher.measureRecall();
 		
 		System.out.println("Found " + matches.size() + " matches.");
+		if (matcher.isApproximateSearch()) {
+			System.out.println("Recall of the approximate matching: " + recall + ".");
+		}
+		if (inVerify.getValue() && transform == null) {
+			System.out.println("No transform consistent with the matches was found.");
+		}
 		System.out.println("Matches computed in has finished in " + ((endTime - startTime1) / 1000000) + " msec.");
 		System.out.println("SURF Method has finished in " + ((endTime - startTime) / 1000000) + " msec.");
 		
@@ -164,13 +240,14 @@ public class SURFSequenceMatch extends EzPlug implements Block {
 		
 		
 		// if (inAddOverlay.getValue()) {
-		for (int i = 0; i < matcher.getMatches().size(); i++) {
-			Descriptor d1 = matches.get(i).getValue0();
-			Descriptor d2 = matches.get(i).getValue1();
-			ROI r1 = new ROI2DPoint(new Point2D.Double(d1.getKeyPoint().getX(), d1.getKeyPoint().getY()));
+		MatchResult result = matcher.getMatchResult();
+		for (int i = 0; i < result.size(); i++) {
+			int i1 = result.getQuery(i);
+			int i2 = result.getTarget(i);
+			ROI r1 = new ROI2DPoint(new Point2D.Double(features1.getX(i1), features1.getY(i1)));
 			r1.setName("" + (i + 1));
 			r1.setShowName(true);
-			ROI r2 = new ROI2DPoint(new Point2D.Double(d2.getKeyPoint().getX(), d2.getKeyPoint().getY()));
+			ROI r2 = new ROI2DPoint(new Point2D.Double(features2.getX(i2), features2.getY(i2)));
 			r2.setName("" + (i + 1));
 			r2.setShowName(true);
 			inSequence1.getValue().addROI(r1);
@@ -181,6 +258,31 @@ public class SURFSequenceMatch extends EzPlug implements Block {
 		
 	}
 
+	/**
+	 * Creates the detection of a sequence, restricted to its ROIs if asked. The
+	 * points of the matches added by previous executions are not regions, so
+	 * they are ignored.
+	 * 
+	 * @param seq
+	 *          The sequence.
+	 * @return The detection of the features of the sequence.
+	 */
+	private SURFDescriptorsDetection createDetection(Sequence seq) {
+		List<ROI2D> rois = new ArrayList<ROI2D>();
+		if (inUseRois.getValue()) {
+			for (ROI2D roi : seq.getROI2Ds()) {
+				if (!(roi instanceof ROI2DPoint)) {
+					rois.add(roi);
+				}
+			}
+		}
+		if (rois.isEmpty()) {
+			return new SURFDescriptorsDetection(seq, threshold);
+		} else {
+			return new SURFDescriptorsDetection(seq, SURFMethodUtils.getUnionMask(rois), threshold);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -197,11 +299,21 @@ public class SURFSequenceMatch extends EzPlug implements Block {
 		inputMap.add(inSequence2.name, inSequence2.getVariable());
 		inputMap.add(inHThreshold.name, inHThreshold.getVariable());
 		inputMap.add(inAddOverlay.name, inAddOverlay.getVariable());
+		inputMap.add(inCrossCheck.name, inCrossCheck.getVariable());
+		inputMap.add(inApproximate.name, inApproximate.getVariable());
+		inputMap.add(inTrees.name, inTrees.getVariable());
+		inputMap.add(inChecks.name, inChecks.getVariable());
+		inputMap.add(inVerify.name, inVerify.getVariable());
+		inputMap.add(inModel.name, inModel.getVariable());
+		inputMap.add(inInlierThreshold.name, inInlierThreshold.getVariable());
+		inputMap.add(inUseRois.name, inUseRois.getVariable());
 	}
 
 	Var<List<Descriptor>> outDescriptors1;
 	Var<List<Descriptor>> outDescriptors2;
 	Var<List<Pair<Descriptor, Descriptor>>> outMatches;
+	Var<double[]> outTransform;
+	Var<Double> outRecall;
 
 	@Override
 	public void declareOutput(VarList outputMap) {
@@ -215,6 +327,14 @@ public class SURFSequenceMatch extends EzPlug implements Block {
 		outMatches = new Var<List<Pair<Descriptor, Descriptor>>>("Matches", matches);
 		outMatches.setValue(matches);
 		outputMap.add(outMatches.getName(), outMatches);
+
+		outTransform = new Var<double[]>("Transform", transform);
+		outTransform.setValue(transform);
+		outputMap.add(outTransform.getName(), outTransform);
+
+		outRecall = new Var<Double>("Recall", recall);
+		outRecall.setValue(recall);
+		outputMap.add(outRecall.getName(), outRecall);
 	}
 
 }